@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct buffers that connections borrow only while
+ * bytes are in flight. Bytes checked out are counted against a global budget:
+ * readers wait for room before taking a buffer, which stops them reading from
+ * their socket and pushes back on the sender through TCP. Writers never wait,
+ * so a full budget cannot stall the delivery that would free it. A reader
+ * waits only while it holds nothing (see {@link Reader}).
+ *
+ * Idle buffers kept for reuse are capped at about half the budget, spread
+ * evenly over the size classes (at least one buffer per class); buffers
+ * released beyond that are dropped and their direct memory is freed once
+ * they are collected.
+ */
+public class BufferPool {
+
+    private static final int[] SIZES = {512, 8 * 1024, 32 * 1024, 128 * 1024, 1024 * 1024};
+
+    private final long budget;
+    private final AtomicLong inFlight = new AtomicLong();
+    private final List<Queue<ByteBuffer>> free = new ArrayList<>();
+    private final AtomicInteger[] idle = new AtomicInteger[SIZES.length];
+    private final int[] maxIdle = new int[SIZES.length];
+    private final Object budgetLock = new Object();
+    private volatile int waiting = 0;
+
+    public BufferPool(long budget) {
+        this.budget = budget;
+        for (int i = 0; i < SIZES.length; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            idle[i] = new AtomicInteger();
+            maxIdle[i] = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budget / 2 / SIZES.length / SIZES[i]));
+        }
+    }
+
+    public static int maxSize() {
+        return SIZES[SIZES.length - 1];
+    }
+
+    /** Borrows a cleared buffer of at least {@code size} bytes, or of {@link #maxSize()} if larger. */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        inFlight.addAndGet(SIZES[sizeClass]);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]);
+        } else {
+            idle[sizeClass].decrementAndGet();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Like {@link #acquire(int)}, but first waits until the buffer fits in the budget. */
+    public ByteBuffer acquireWithinBudget(int size) throws InterruptedException {
+        int needed = SIZES[sizeClass(size)];
+        if (inFlight.get() + needed > budget) {
+            synchronized (budgetLock) {
+                waiting++;
+                try {
+                    while (inFlight.get() + needed > budget) {
+                        budgetLock.wait();
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+        return acquire(size);
+    }
+
+    public void release(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (idle[sizeClass].incrementAndGet() <= maxIdle[sizeClass]) {
+            free.get(sizeClass).offer(buffer);
+        } else {
+            idle[sizeClass].decrementAndGet();
+        }
+        inFlight.addAndGet(-SIZES[sizeClass]);
+        if (waiting > 0) {
+            synchronized (budgetLock) {
+                budgetLock.notifyAll();
+            }
+        }
+    }
+
+    public Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * The read side of one connection, which may stack buffers: TLS records
+     * under a line buffer, or a line outgrowing its buffer. Only a borrow made
+     * while the connection holds none waits for budget; later ones are taken
+     * at once, so no reader waits for memory while holding some that another
+     * waiting reader needs.
+     */
+    public final class Reader {
+        private final AtomicInteger held = new AtomicInteger();
+
+        public ByteBuffer acquire(int size) throws InterruptedException {
+            ByteBuffer buffer = held.get() == 0 ? acquireWithinBudget(size) : BufferPool.this.acquire(size);
+            held.incrementAndGet();
+            return buffer;
+        }
+
+        /** Takes a buffer without waiting, for a thread that must not stall, such as a handshake selector. */
+        public ByteBuffer acquireNow(int size) {
+            held.incrementAndGet();
+            return BufferPool.this.acquire(size);
+        }
+
+        public void release(ByteBuffer buffer) {
+            held.decrementAndGet();
+            BufferPool.this.release(buffer);
+        }
+    }
+
+    public long inFlightBytes() {
+        return inFlight.get();
+    }
+
+    /** Bytes of direct memory held by idle buffers waiting for reuse. */
+    public long idleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < SIZES.length; i++) {
+            bytes += (long) idle[i].get() * SIZES[i];
+        }
+        return bytes;
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) return i;
+        }
+        return SIZES.length - 1;
+    }
+}
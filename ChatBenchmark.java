@@ -0,0 +1,101 @@
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Loopback benchmark for a running ChatServer: private-message throughput
+ * between two sessions, then the cost of connecting. Run it once against a
+ * plaintext server and once against a TLS one to compare.
+ *
+ * The server must accept bare usernames and not rate limit:
+ * {@code java -Dchat.auth=false -Dchat.rate.messages=0 ChatServer}.
+ * TLS is selected the same way as for ChatClient ({@code -Dchat.tls=true} and
+ * a truststore); with TLS the connect test runs once with a shared SSLContext,
+ * so sessions are resumed, and once with a new context per connection.
+ */
+public class ChatBenchmark {
+
+    private static final int MESSAGES = Integer.getInteger("chat.bench.messages", 100_000);
+    private static final int MESSAGE_SIZE = Integer.getInteger("chat.bench.size", 100);
+    private static final int CONNECTS = Integer.getInteger("chat.bench.connects", 200);
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length >= 1 ? args[0] : "localhost";
+        int port = args.length >= 2 ? Integer.parseInt(args[1]) : 12345;
+        boolean tls = Boolean.getBoolean("chat.tls");
+        System.out.println("Benchmark against " + host + ":" + port + (tls ? " (TLS)" : " (plaintext)"));
+
+        throughput(host, port);
+
+        System.out.printf("connect + login: %.2f ms%n", connectMillis(host, port, true));
+        if (tls) {
+            System.out.printf("connect + login, no session reuse: %.2f ms%n", connectMillis(host, port, false));
+        }
+        System.exit(0);
+    }
+
+    private static void throughput(String host, int port) throws Exception {
+        long run = System.nanoTime();
+        String receiverName = "bench-rx-" + run;
+        ChatConnection sender = ChatConnection.connect(host, port).get();
+        ChatConnection receiver = ChatConnection.connect(host, port).get();
+        CountDownLatch received = new CountDownLatch(MESSAGES);
+        receiver.addListener(event -> {
+            if (event.type == ChatEvent.Type.PRIVATE_MESSAGE) received.countDown();
+        });
+        sender.login("bench-tx-" + run).get();
+        receiver.login(receiverName).get();
+        sender.listUsers().get(5, TimeUnit.SECONDS);
+
+        // Random text, so compression does not make the payload vanish.
+        Random random = new Random(42);
+        String[] payloads = new String[256];
+        for (int i = 0; i < payloads.length; i++) {
+            StringBuilder sb = new StringBuilder(MESSAGE_SIZE);
+            for (int j = 0; j < MESSAGE_SIZE; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            payloads[i] = sb.toString();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            sender.sendPrivate(receiverName, payloads[i & 255]);
+        }
+        if (!received.await(5, TimeUnit.MINUTES)) {
+            System.out.println("Timed out; " + received.getCount() + " messages missing");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d messages of %d bytes: %.0f msg/s, %.1f MB/s%n", MESSAGES, MESSAGE_SIZE,
+                MESSAGES / seconds, MESSAGES * (double) MESSAGE_SIZE / seconds / (1 << 20));
+        sender.close();
+        receiver.close();
+    }
+
+    private static double connectMillis(String host, int port, boolean reuseSessions) throws Exception {
+        SSLContext shared = Boolean.getBoolean("chat.tls")
+                ? TlsChannel.clientContext(truststore(), password())
+                : null;
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTS; i++) {
+            SSLContext context = shared == null || reuseSessions
+                    ? shared
+                    : TlsChannel.clientContext(truststore(), password());
+            ChatConnection connection = ChatConnection.connect(host, port, context).get();
+            connection.login("bench-c" + i + "-" + start).get();
+            connection.listUsers().get(5, TimeUnit.SECONDS);
+            connection.close();
+        }
+        return (System.nanoTime() - start) / 1e6 / CONNECTS;
+    }
+
+    private static java.io.File truststore() {
+        String path = System.getProperty("chat.tls.truststore");
+        return path != null ? new java.io.File(path) : null;
+    }
+
+    private static char[] password() {
+        return System.getProperty("chat.tls.truststorePassword", "").toCharArray();
+    }
+}
@@ -1,25 +1,57 @@
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+/** Console front end; all networking goes through {@link ChatConnection}. */
 public class ChatClient {
+    private static final long RESPONSE_TIMEOUT_SECONDS = 5;
+
+    // Incoming messages are queued and printed in batches, one write per tick. When more than
+    // RENDER_BACKLOG messages are waiting, all but the latest RENDER_KEEP are summarized.
+    private static final long RENDER_TICK_MILLIS = Long.getLong("chat.render.tick", 50);
+    private static final int RENDER_BACKLOG = Integer.getInteger("chat.render.backlog", 200);
+    private static final int RENDER_KEEP = Integer.getInteger("chat.render.keep", 20);
+
     private static volatile boolean running = true;
-    private static volatile String lastServerResponse = null;
-    private static final Object responseLock = new Object();
-    
-   
     private static volatile String currentChatContext = "MAIN_MENU"; 
     private static volatile String currentChatTarget = null;
+    private static volatile String currentGroup = null;
+    private static final ConsoleRenderer renderer = new ConsoleRenderer();
     
     public static void main(String[] args) throws IOException {
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
 
-        System.out.println("Testing database connection...");
-        if (!DatabaseManager.testConnection()) {
-            System.out.println(">>> ERROR: Could not connect to database. Check MySQL & DB_HOST.");
+        String host = "localhost";
+        int port = 12345;
+        if (args.length >= 1) {
+            host = args[0];
+            if (args.length >= 2) port = Integer.parseInt(args[1]);
+        } else {
+            System.out.print("Enter server IP address (or press Enter for localhost): ");
+            String hostInput = console.readLine();
+            if (hostInput != null && !hostInput.trim().isEmpty()) host = hostInput.trim();
+
+            System.out.print("Enter server port (or press Enter for 12345): ");
+            String portInput = console.readLine();
+            if (portInput != null && !portInput.trim().isEmpty()) {
+                try {
+                    port = Integer.parseInt(portInput.trim());
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid port, using default 12345");
+                }
+            }
+        }
+
+        ChatConnection connection;
+        try {
+            connection = ChatConnection.connect(host, port).get();
+            System.out.println("Connected to server " + host + ":" + port + "\n");
+        } catch (InterruptedException | ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println("Could not connect to server at " + host + ":" + port);
+            System.out.println("Error: " + cause.getMessage());
             return;
         }
-        System.out.println(">>> Database is reachable.\n");
 
         String username = null;
         boolean authenticated = false;
@@ -32,6 +64,7 @@ public class ChatClient {
             System.out.print("Select option: ");
             String authChoice = console.readLine();
             if (authChoice == null || authChoice.trim().equals("0")) {
+                connection.close();
                 System.out.println("Bye.");
                 return;
             }
@@ -42,27 +75,32 @@ public class ChatClient {
                     String u = console.readLine();
                     System.out.print("Password: ");
                     String p = console.readLine();
-                    if (DatabaseManager.authenticateUser(u, p)) {
+                    if (u == null || u.trim().isEmpty() || p == null) {
+                        System.out.println(">>> Invalid username or password.\n");
+                        break;
+                    }
+                    String loginReply = await(connection.login(u.trim(), p));
+                    if (loginReply == null) {
+                        System.out.println(">>> Server disconnected.");
+                        return;
+                    }
+                    if (loginReply.startsWith("OK ")) {
                         username = u.trim();
                         authenticated = true;
                         System.out.println(">>> Login successful. Welcome, " + username + "!\n");
                     } else {
-                        System.out.println(">>> Invalid username or password.\n");
+                        System.out.println(">>> " + loginReply.substring("ERROR ".length()) + ".\n");
                     }
                     break;
 
                 case "2":  
                     System.out.print("Choose username: ");
                     String su = console.readLine();
-                    if (su == null || su.trim().isEmpty()) {
-                        System.out.println(">>> Username cannot be empty.\n");
+                    if (su == null || su.trim().isEmpty() || su.trim().contains(" ")) {
+                        System.out.println(">>> Username cannot be empty or contain spaces.\n");
                         break;
                     }
                     su = su.trim();
-                    if (DatabaseManager.userExists(su)) {
-                        System.out.println(">>> Username already taken.\n");
-                        break;
-                    }
                     System.out.print("Choose password (min 6 chars): ");
                     String sp = console.readLine();
                     if (sp == null || sp.length() < 6) {
@@ -75,10 +113,15 @@ public class ChatClient {
                         System.out.println(">>> Passwords do not match.\n");
                         break;
                     }
-                    if (DatabaseManager.registerUser(su, sp)) {
+                    String signupReply = await(connection.signup(su, sp));
+                    if (signupReply == null) {
+                        System.out.println(">>> Server disconnected.");
+                        return;
+                    }
+                    if (signupReply.startsWith("OK ")) {
                         System.out.println(">>> Signup successful. You can now login.\n");
                     } else {
-                        System.out.println(">>> Signup failed. Try again.\n");
+                        System.out.println(">>> " + signupReply.substring("ERROR ".length()) + ".\n");
                     }
                     break;
 
@@ -87,141 +130,12 @@ public class ChatClient {
             }
         }
 
-        System.out.print("Enter server IP address (or press Enter for localhost): ");
-        String hostInput = console.readLine();
-        String host = (hostInput == null || hostInput.trim().isEmpty()) ? "localhost" : hostInput.trim();
-
-        System.out.print("Enter server port (or press Enter for 12345): ");
-        String portInput = console.readLine();
-        int port = 12345;
-        if (portInput != null && !portInput.trim().isEmpty()) {
-            try {
-                port = Integer.parseInt(portInput.trim());
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid port, using default 12345");
-            }
-        }
-
-        if (args.length >= 1) host = args[0];
-        if (args.length >= 2) port = Integer.parseInt(args[1]);
-
         File userFolder = new File(username);
         if (!userFolder.exists()) userFolder.mkdirs();
 
-        Socket socket;
-        try {
-            socket = new Socket(host, port);
-            System.out.println("Connected to server " + host + ":" + port);
-        } catch (IOException e) {
-            System.out.println("Could not connect to server at " + host + ":" + port);
-            System.out.println("Error: " + e.getMessage());
-            return;
-        }
-
-        BufferedReader serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        PrintWriter serverOut = new PrintWriter(socket.getOutputStream(), true);
-
-        serverOut.println(username);
+        renderer.start();
+        connection.addListener(new ConsoleListener(userFolder));
   
-        String finalUsername = username;
-        new Thread(() -> {
-            try {
-                String msg;
-                FileWriter fw = null;
-                String currentIncomingFile = null;
-                
-                while ((msg = serverIn.readLine()) != null) {
-                    if (msg.startsWith("INFO ")) {
-                        continue;
-                    } else if (msg.startsWith("USERS ") || msg.startsWith("GROUP_MEMBERS ")) {
-                        synchronized (responseLock) {
-                            lastServerResponse = msg;
-                            responseLock.notify();
-                        }
-                    } else if (msg.startsWith("GROUPS ")) {
-                        synchronized (responseLock) {
-                            lastServerResponse = msg;
-                            responseLock.notify();
-                        }
-                    } else if (msg.startsWith("PRIVATE_FROM ")) {
-                        String rest = msg.substring("PRIVATE_FROM ".length());
-                        int sep = rest.indexOf(" : ");
-                        if (sep > 0) {
-                            String from = rest.substring(0, sep);
-                            String text = rest.substring(sep + 3);
-                            
-                            if (!currentChatContext.equals("CHAT_WITH_USER") || 
-                                !from.equals(currentChatTarget)) {
-                                System.out.println("\n>>> [1-to-1 chat from " + from + "]");
-                            }
-                            System.out.println("[" + from + "]: " + text);
-                        } else {
-                            System.out.println(msg);
-                        }
-                    } else if (msg.startsWith("GROUP_FROM ")) {
-                        String rest = msg.substring("GROUP_FROM ".length());
-                        int sep = rest.indexOf(" : ");
-                        if (sep > 0) {
-                            String from = rest.substring(0, sep);
-                            String text = rest.substring(sep + 3);
-                            System.out.println("[" + from + "]: " + text);
-                        } else {
-                            System.out.println(msg);
-                        }
-                    } else if (msg.startsWith("GROUP_INFO ")) {
-                        System.out.println(">>> " + msg.substring("GROUP_INFO ".length()));
-                    } else if (msg.startsWith("FILESTART_USER ")) {
-                        String[] parts = msg.split(" ", 3);
-                        if (parts.length >= 3) {
-                            String sender = parts[1];
-                            String fileName = parts[2];
-                            currentIncomingFile = fileName;
-                            File f = new File(userFolder, "received_" + fileName);
-                            fw = new FileWriter(f);
-                            System.out.println(">>> Receiving file '" + fileName + "' from " + sender);
-                        }
-                    } else if (msg.startsWith("FILESTART_GROUP ")) {
-                        String[] parts = msg.split(" ", 4);
-                        if (parts.length >= 4) {
-                            String sender = parts[1];
-                            String groupName = parts[2];
-                            String fileName = parts[3];
-                            currentIncomingFile = fileName;
-                            File f = new File(userFolder, "received_" + fileName);
-                            fw = new FileWriter(f);
-                            System.out.println(">>> Receiving file '" + fileName + "' from " + sender +
-                                    " in group " + groupName);
-                        }
-                    } else if (msg.startsWith("FILEDATA ")) {
-                        if (fw != null) {
-                            fw.write(msg.substring(9) + "\n");
-                        }
-                    } else if (msg.equals("FILEEND")) {
-                        if (fw != null) {
-                            fw.close();
-                            fw = null;
-                            System.out.println(">>> File '" + currentIncomingFile + "' received successfully");
-                            currentIncomingFile = null;
-                        }
-                    } else if (msg.startsWith("ERROR ")) {
-                        System.out.println(">>> " + msg);
-                    } else if (msg.startsWith("OK ")) {
-                        synchronized (responseLock) {
-                            lastServerResponse = msg;
-                            responseLock.notify();
-                        }
-                        if (msg.contains("File sent")) {
-                            System.out.println(">>> " + msg.substring(3));
-                        }
-                    } else {
-                        System.out.println(msg);
-                    }
-                }
-            } catch (IOException e) {
-                if (running) System.out.println(">>> Disconnected from server");
-            }
-        }).start();
-        
         while (running) {
             currentChatContext = "MAIN_MENU";
             currentChatTarget = null;
@@ -230,6 +144,7 @@ public class ChatClient {
             System.out.println("==== MAIN MENU ====");
             System.out.println("1. 1-to-1 chat");
             System.out.println("2. Group chat (channels)");
+            System.out.println("3. Search chat history");
             System.out.println("0. Exit");
             System.out.print("Select option: ");
             
@@ -238,10 +153,13 @@ public class ChatClient {
             
             switch (choice.trim()) {
                 case "1":
-                    oneToOneMenu(console, serverOut, username, userFolder);
+                    oneToOneMenu(console, connection, username, userFolder);
                     break;
                 case "2":
-                    groupMenu(console, serverOut, username, userFolder);
+                    groupMenu(console, connection, username, userFolder);
+                    break;
+                case "3":
+                    searchMenu(console, connection);
                     break;
                 case "0":
                     running = false;
@@ -251,42 +169,31 @@ public class ChatClient {
             }
         }
         
-        try {
-            socket.close();
-        } catch (IOException ignored) {}
+        connection.close();
+        renderer.flush();
         System.out.println("Bye.");
     }
     
     
     private static void oneToOneMenu(BufferedReader console,
-                                      PrintWriter serverOut,
+                                      ChatConnection connection,
                                       String username,
                                       File userFolder) throws IOException {
         while (true) {
             currentChatContext = "MAIN_MENU";
             currentChatTarget = null;
             
-            serverOut.println("LIST_USERS");
-            
-            String line = waitForResponse();
-            if (line == null) {
+            List<String> online = await(connection.listUsers());
+            if (online == null) {
                 System.out.println(">>> Server disconnected.");
                 return;
             }
             
             List<String> users = new ArrayList<>();
-            if (line.startsWith("USERS ")) {
-                String payload = line.substring(6).trim();
-                if (!payload.isEmpty()) {
-                    String[] parts = payload.split(",");
-                    for (String p : parts) {
-                        if (!p.equals(username)) { 
-                            users.add(p);
-                        }
-                    }
+            for (String p : online) {
+                if (!p.equals(username)) { 
+                    users.add(p);
                 }
-            } else {
-                System.out.println(line);
             }
             
             System.out.println();
@@ -326,13 +233,13 @@ public class ChatClient {
                 }
                 
                 String targetUser = users.get(num - 1);
-                oneToOneChatMenu(console, serverOut, username, targetUser, userFolder);
+                oneToOneChatMenu(console, connection, username, targetUser, userFolder);
             }
         }
     }
     
     private static void oneToOneChatMenu(BufferedReader console,
-                                          PrintWriter serverOut,
+                                          ChatConnection connection,
                                           String myName,
                                           String targetUser,
                                           File userFolder) throws IOException {
@@ -361,7 +268,7 @@ public class ChatClient {
                     if (msg == null) return;
                     if (msg.equals("0")) break;
                     if (!msg.trim().isEmpty()) {
-                        serverOut.println("PRIVMSG " + targetUser + " :" + msg);
+                        connection.sendPrivate(targetUser, msg);
                         System.out.println("[" + myName + "]: " + msg);
                     }
                 }
@@ -384,15 +291,8 @@ public class ChatClient {
                     continue;
                 }
                 
-                serverOut.println("SENDFILE_USER " + targetUser + " " + fileName);
-                try (BufferedReader fr = new BufferedReader(new FileReader(f))) {
-                    String l;
-                    while ((l = fr.readLine()) != null) {
-                        serverOut.println(l);
-                    }
-                }
-                serverOut.println("FILEEND");
                 System.out.println(">>> Sending file...");
+                printFileReply(await(connection.sendFileToUser(targetUser, f)));
             } else if (choice.equals("0")) {
                 return;
             } else {
@@ -403,7 +303,7 @@ public class ChatClient {
     
     
     private static void groupMenu(BufferedReader console,
-                                   PrintWriter serverOut,
+                                   ChatConnection connection,
                                    String username,
                                    File userFolder) throws IOException {
         while (true) {
@@ -432,21 +332,19 @@ public class ChatClient {
                 continue;
             }
             
-            serverOut.println("JOIN_GROUP " + groupName);
-            String joinResp = waitForResponse();
-            if (joinResp != null) System.out.println(">>> " + joinResp);
+            String joinResp = await(connection.joinGroup(groupName));
+            if (joinResp != null && !joinResp.startsWith("ERROR ")) {
+                currentGroup = groupName;
+                System.out.println(">>> " + joinResp);
+            }
             
-            serverOut.println("LIST_GROUP_MEMBERS");
-            String membersResp = waitForResponse();
-            if (membersResp != null && membersResp.startsWith("GROUP_MEMBERS ")) {
-                String payload = membersResp.substring("GROUP_MEMBERS ".length()).trim();
-                
+            List<String> members = await(connection.listGroupMembers());
+            if (members != null) {
                 System.out.println();
                 System.out.println("-----------Members in " + groupName + "-----------");
-                if (payload.isEmpty()) {
+                if (members.isEmpty()) {
                     System.out.println("(none)");
                 } else {
-                    String[] members = payload.split(",");
                     int idx = 1;
                     for (String member : members) {
                         System.out.println(idx + ". " + member);
@@ -455,12 +353,12 @@ public class ChatClient {
                 }
             }
             
-            groupChatMenu(console, serverOut, groupName, username, userFolder);
+            groupChatMenu(console, connection, groupName, username, userFolder);
         }
     }
     
     private static void groupChatMenu(BufferedReader console,
-                                       PrintWriter serverOut,
+                                       ChatConnection connection,
                                        String groupName,
                                        String username,
                                        File userFolder) throws IOException {
@@ -486,8 +384,7 @@ public class ChatClient {
                     if (msg == null) return;
                     if (msg.equals("0")) break;
                     if (!msg.trim().isEmpty()) {
-                        serverOut.println("GROUPMSG :" + msg);
-                        
+                        connection.sendGroup(msg);
                     }
                 }
             } else if (choice.equals("2")) {
@@ -505,15 +402,8 @@ public class ChatClient {
                     continue;
                 }
                 
-                serverOut.println("SENDFILE_GROUP " + groupName + " " + fileName);
-                try (BufferedReader fr = new BufferedReader(new FileReader(f))) {
-                    String l;
-                    while ((l = fr.readLine()) != null) {
-                        serverOut.println(l);
-                    }
-                }
-                serverOut.println("FILEEND");
                 System.out.println(">>> Sending file to channel...");
+                printFileReply(await(connection.sendFileToGroup(groupName, f)));
             } else if (choice.equals("0")) {
                 currentChatContext = "MAIN_MENU";
                 currentChatTarget = null;
@@ -524,14 +414,180 @@ public class ChatClient {
         }
     }
     
-    private static String waitForResponse() {
-        synchronized (responseLock) {
-            lastServerResponse = null;
+    private static void searchMenu(BufferedReader console, ChatConnection connection) throws IOException {
+        System.out.print("Search in (user or group name): ");
+        String target = console.readLine();
+        if (target == null || target.trim().isEmpty()) return;
+        System.out.print("Search for: ");
+        String terms = console.readLine();
+        if (terms == null || terms.trim().isEmpty()) return;
+
+        System.out.println();
+        System.out.println("-----------Results in " + target.trim() + "-----------");
+        String end = await(connection.search(target.trim(), terms.trim()));
+        renderer.flush();
+        if (end != null && end.startsWith("SEARCH_END ")) {
+            System.out.println(">>> " + end.substring("SEARCH_END ".length()) + " result(s)");
+        }
+    }
+
+    private static void printFileReply(String reply) {
+        if (reply != null && reply.startsWith("OK ")) {
+            System.out.println(">>> " + reply.substring(3));
+        }
+    }
+
+    /** Waits for a reply; null if it failed or took too long. */
+    private static <T> T await(CompletableFuture<T> reply) {
+        try {
+            return reply.get(RESPONSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /** Prints server events and writes received files into the user's folder. */
+    private static class ConsoleListener implements ChatConnection.Listener {
+        private final File userFolder;
+        private final java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm");
+        private FileWriter fw = null;
+        private String currentIncomingFile = null;
+
+        ConsoleListener(File userFolder) {
+            this.userFolder = userFolder;
+        }
+
+        @Override
+        public void onEvent(ChatEvent event) {
             try {
-                responseLock.wait(5000); 
-                return lastServerResponse;
-            } catch (InterruptedException e) {
-                return null;
+                switch (event.type) {
+                    case PRIVATE_MESSAGE:
+                        String line = "[" + event.from + "]: " + event.text;
+                        if (!currentChatContext.equals("CHAT_WITH_USER") || 
+                            !event.from.equals(currentChatTarget)) {
+                            line = "\n>>> [1-to-1 chat from " + event.from + "]\n" + line;
+                        }
+                        renderer.message("from " + event.from, line);
+                        break;
+                    case GROUP_MESSAGE:
+                        renderer.message(currentGroup != null ? "in " + currentGroup : "from " + event.from,
+                                "[" + event.from + "]: " + event.text);
+                        break;
+                    case SEARCH_RESULT:
+                        renderer.print(dateFormat.format(new Date(event.time))
+                                + " [" + event.from + "]: " + event.text);
+                        break;
+                    case GROUP_INFO:
+                        renderer.print(">>> " + event.text);
+                        break;
+                    case FILE_START:
+                        if (fw != null) fw.close();
+                        currentIncomingFile = event.fileName;
+                        fw = new FileWriter(new File(userFolder, "received_" + event.fileName));
+                        renderer.print(">>> Receiving file '" + event.fileName + "' from " + event.from
+                                + (event.group != null ? " in group " + event.group : ""));
+                        break;
+                    case FILE_DATA:
+                        if (fw != null) {
+                            fw.write(event.text + "\n");
+                        }
+                        break;
+                    case FILE_END:
+                        if (fw != null) {
+                            fw.close();
+                            fw = null;
+                            renderer.print(">>> File '" + currentIncomingFile + "' received successfully");
+                            currentIncomingFile = null;
+                        }
+                        break;
+                    case ERROR:
+                        renderer.print(">>> " + event.line);
+                        break;
+                    case DISCONNECTED:
+                        if (running) renderer.print(">>> Disconnected from server");
+                        break;
+                    default:
+                        if (!event.line.startsWith("OK ") && !event.line.startsWith("USERS ")
+                                && !event.line.startsWith("GROUPS ") && !event.line.startsWith("GROUP_MEMBERS ")
+                                && !event.line.startsWith("NEED_FILE ") && !event.line.startsWith("SEARCH_END ")) {
+                            renderer.print(event.line);
+                        }
+                }
+            } catch (IOException e) {
+                renderer.print(">>> Could not write '" + currentIncomingFile + "': " + e.getMessage());
+                fw = null;
+            }
+        }
+    }
+
+    /**
+     * Prints server output from a queue on its own thread, so a slow terminal
+     * never stops the connection from reading. Each tick drains the queue into
+     * one buffered write; a backlog of chat messages is collapsed to the latest
+     * few plus a per-conversation count of the rest.
+     */
+    private static class ConsoleRenderer {
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+        private final StringBuilder frame = new StringBuilder();
+
+        void start() {
+            ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "console-renderer");
+                t.setDaemon(true);
+                return t;
+            });
+            ticker.scheduleWithFixedDelay(this::flush, RENDER_TICK_MILLIS, RENDER_TICK_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /** A chat message; {@code conversation} names it in a collapsed summary. */
+        void message(String conversation, String text) {
+            queue.add(new Entry(conversation, text));
+        }
+
+        /** Anything else: notices, file progress, search results. Never collapsed. */
+        void print(String text) {
+            queue.add(new Entry(null, text));
+        }
+
+        synchronized void flush() {
+            List<Entry> batch = new ArrayList<>();
+            int messages = 0;
+            Entry e;
+            while ((e = queue.poll()) != null) {
+                batch.add(e);
+                if (e.conversation != null) messages++;
+            }
+            if (batch.isEmpty()) return;
+
+            int skip = messages > RENDER_BACKLOG ? messages - RENDER_KEEP : 0;
+            Map<String, Integer> skipped = new LinkedHashMap<>();
+            frame.setLength(0);
+            for (Entry entry : batch) {
+                if (entry.conversation != null && skip > 0) {
+                    skipped.merge(entry.conversation, 1, Integer::sum);
+                    skip--;
+                    if (skip == 0) {
+                        for (Map.Entry<String, Integer> s : skipped.entrySet()) {
+                            frame.append(">>> ").append(s.getValue()).append(" more messages ")
+                                    .append(s.getKey()).append('\n');
+                        }
+                    }
+                    continue;
+                }
+                frame.append(entry.text).append('\n');
+            }
+            System.out.print(frame);
+            System.out.flush();
+        }
+
+        private static final class Entry {
+            final String conversation;
+            final String text;
+
+            Entry(String conversation, String text) {
+                this.conversation = conversation;
+                this.text = text;
             }
         }
     }
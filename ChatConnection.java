@@ -0,0 +1,680 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Non-blocking connection to a ChatServer, with no UI of its own.
+ *
+ * Every line from the server is parsed into a {@link ChatEvent} and handed, in
+ * order, to the registered listeners and to subscribers of {@link #events()}.
+ * Sends are queued and written asynchronously; commands the server answers
+ * return a future for the reply. Reads and writes run on the JVM's shared
+ * asynchronous channel group, so one process can drive many sessions without a
+ * thread per connection.
+ *
+ * With TLS the handshake runs once, blocking, on a common pool thread; after
+ * that records are wrapped as lines are queued and unwrapped as they are read.
+ * All connections made through one SSLContext share its session cache, so a
+ * reconnect to the same host and port resumes the session instead of
+ * repeating the full handshake.
+ */
+public class ChatConnection implements Closeable {
+
+    public interface Listener {
+        /** Called on a channel group thread; must not block. */
+        void onEvent(ChatEvent event);
+    }
+
+    private static final boolean COMPRESSION_REQUESTED =
+            Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int UPLOAD_CHUNK_BYTES = 64 * 1024;
+    private static final long CLOSE_NOTIFY_TIMEOUT_MILLIS = 1_000;
+
+    private static final boolean TLS_REQUESTED = Boolean.getBoolean("chat.tls");
+    private static SSLContext defaultTlsContext = null;
+
+    private final AsynchronousSocketChannel channel;
+    private final SSLEngine tls;   // null for plaintext
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer appIn;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private final LineCompressor decompressor = new LineCompressor();
+    private final LineCompressor uploadCompressor = new LineCompressor();
+
+    private final Object sendLock = new Object();
+    private final Queue<Write> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private long nextTag = 0;   // guarded by sendLock
+    private boolean closing = false;   // guarded by sendLock; set once close_notify is queued
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final SubmissionPublisher<ChatEvent> publisher = new SubmissionPublisher<>();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private volatile boolean compression = false;
+
+    private ChatConnection(AsynchronousSocketChannel channel, SSLEngine tls) {
+        this.channel = channel;
+        this.tls = tls;
+        if (tls == null) {
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            appIn = null;
+        } else {
+            readBuffer = ByteBuffer.allocate(tls.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(tls.getSession().getApplicationBufferSize());
+        }
+    }
+
+    /** Connects with TLS when {@code -Dchat.tls=true}, otherwise in plaintext. */
+    public static CompletableFuture<ChatConnection> connect(String host, int port) {
+        if (!TLS_REQUESTED) return connect(host, port, null);
+        try {
+            return connect(host, port, defaultTlsContext());
+        } catch (IOException | GeneralSecurityException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /** Connects over TLS with the given context, or in plaintext if it is null. */
+    public static CompletableFuture<ChatConnection> connect(String host, int port, SSLContext tlsContext) {
+        CompletableFuture<ChatConnection> result = new CompletableFuture<>();
+        AsynchronousSocketChannel channel;
+        try {
+            channel = AsynchronousSocketChannel.open();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+            public void completed(Void v, Void attachment) {
+                if (tlsContext == null) {
+                    ChatConnection connection = new ChatConnection(channel, null);
+                    result.complete(connection);
+                    connection.read();
+                    return;
+                }
+                SSLEngine engine = tlsContext.createSSLEngine(host, port);
+                engine.setUseClientMode(true);
+                SSLParameters params = engine.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(params);
+                ChatConnection connection = new ChatConnection(channel, engine);
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        connection.handshake();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }).whenComplete((ok, t) -> {
+                    if (t != null) {
+                        connection.close();
+                        result.completeExceptionally(t instanceof CompletionException ? t.getCause() : t);
+                        return;
+                    }
+                    result.complete(connection);
+                    try {
+                        if (connection.unwrapInbound()) {
+                            connection.read();
+                        } else {
+                            connection.close();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                });
+            }
+
+            public void failed(Throwable t, Void attachment) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    private static synchronized SSLContext defaultTlsContext()
+            throws IOException, GeneralSecurityException {
+        if (defaultTlsContext == null) {
+            String truststore = System.getProperty("chat.tls.truststore");
+            defaultTlsContext = TlsChannel.clientContext(truststore != null ? new File(truststore) : null,
+                    System.getProperty("chat.tls.truststorePassword", "").toCharArray());
+        }
+        return defaultTlsContext;
+    }
+
+    private void handshake() throws IOException {
+        ByteBuffer netOut = ByteBuffer.allocate(tls.getSession().getPacketBufferSize());
+        TlsChannel.handshake(tls, new BlockingChannel(channel), readBuffer, netOut, appIn);
+        appIn.clear();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Incoming events; the stream completes when the connection closes. A
+     * subscriber that falls a full buffer behind stops reading from the socket
+     * until it catches up.
+     */
+    public Flow.Publisher<ChatEvent> events() {
+        return publisher;
+    }
+
+    /** Completes once the connection is closed, by either side. */
+    public CompletableFuture<Void> closed() {
+        return closed;
+    }
+
+    public boolean isOpen() {
+        return !closed.isDone();
+    }
+
+    /**
+     * Logs in through the server and, on success, asks for compression.
+     * Completes with "OK Login ..." or an ERROR line; after an error the
+     * connection stays open for another attempt.
+     */
+    public CompletableFuture<String> login(String username, String password) {
+        return request("LOGIN " + username + " " + password, "OK Login ", "ERROR ")
+                .thenApply(reply -> {
+                    if (reply.startsWith("OK ")) negotiateCompression();
+                    return reply;
+                });
+    }
+
+    /** Completes with "OK Signup ..." or an ERROR line; login separately afterwards. */
+    public CompletableFuture<String> signup(String username, String password) {
+        return request("SIGNUP " + username + " " + password, "OK Signup ", "ERROR ");
+    }
+
+    /** The bare-username handshake, for servers running with {@code -Dchat.auth=false}. */
+    public CompletableFuture<Void> login(String username) {
+        CompletableFuture<Void> sent = send(username);
+        negotiateCompression();
+        return sent;
+    }
+
+    private void negotiateCompression() {
+        if (COMPRESSION_REQUESTED) {
+            request("COMPRESS " + LineCompressor.ALGORITHM, "OK Compression ", "ERROR ")
+                    .thenAccept(reply -> compression = reply.startsWith("OK "));
+        }
+    }
+
+    public CompletableFuture<Void> sendPrivate(String user, String text) {
+        return command("PRIVMSG " + user + " :" + text);
+    }
+
+    /** Sends to the group joined last. */
+    public CompletableFuture<Void> sendGroup(String text) {
+        return command("GROUPMSG :" + text);
+    }
+
+    public CompletableFuture<List<String>> listUsers() {
+        return request("LIST_USERS", "USERS ").thenApply(ChatConnection::names);
+    }
+
+    public CompletableFuture<List<String>> listGroups() {
+        return request("LIST_GROUPS", "GROUPS ").thenApply(ChatConnection::names);
+    }
+
+    public CompletableFuture<List<String>> listGroupMembers() {
+        return request("LIST_GROUP_MEMBERS", "GROUP_MEMBERS ", "ERROR ").thenApply(ChatConnection::names);
+    }
+
+    /** Completes with the server's reply, "OK Joined group ..." or an ERROR line. */
+    public CompletableFuture<String> joinGroup(String group) {
+        return request("JOIN_GROUP " + group, "OK Joined group ", "ERROR ");
+    }
+
+    /**
+     * Results arrive as SEARCH_RESULT events; the future completes with the
+     * closing "SEARCH_END n" line, or an ERROR line.
+     */
+    public CompletableFuture<String> search(String userOrGroup, String terms) {
+        return request("SEARCH " + userOrGroup + " " + terms, "SEARCH_END ", "ERROR ");
+    }
+
+    public CompletableFuture<String> sendFileToUser(String user, File file) {
+        return sendFile("USER", user, file);
+    }
+
+    public CompletableFuture<String> sendFileToGroup(String group, File file) {
+        return sendFile("GROUP", group, file);
+    }
+
+    /** The file arrives as FILE_START, FILE_DATA and FILE_END events. */
+    public CompletableFuture<Void> fetchFile(String hash, String fileName) {
+        return command("FETCH_FILE " + hash + " " + fileName);
+    }
+
+    /** Sends a raw protocol line. */
+    public CompletableFuture<Void> send(String line) {
+        synchronized (sendLock) {
+            return write(line + "\n");
+        }
+    }
+
+    /**
+     * Sends a command that has no reply on success. It is still tagged, so its
+     * ERROR, if any, carries the tag and cannot complete another request.
+     */
+    private CompletableFuture<Void> command(String line) {
+        synchronized (sendLock) {
+            return write("@" + (++nextTag) + " " + line + "\n");
+        }
+    }
+
+    /**
+     * Offers the file by content hash first; the server answers NEED_FILE
+     * only when it does not already have it, and only then is it uploaded.
+     * Completes with the server's final reply.
+     */
+    private CompletableFuture<String> sendFile(String kind, String target, File file) {
+        String hash;
+        try {
+            hash = FileStore.contentHash(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String fileName = file.getName();
+        return request("SENDHASH_" + kind + " " + target + " " + hash + " " + fileName,
+                "NEED_FILE ", "OK File sent", "ERROR ")
+                .thenCompose(reply -> {
+                    if (!reply.startsWith("NEED_FILE ")) return CompletableFuture.completedFuture(reply);
+                    return CompletableFuture.supplyAsync(() -> upload(kind, target, file, fileName))
+                            .thenCompose(f -> f);
+                });
+    }
+
+    /**
+     * Queues the whole transfer under the send lock so no other line can land
+     * between SENDFILE and FILEEND, waiting on each chunk so a large file is
+     * never held in memory at once.
+     */
+    private CompletableFuture<String> upload(String kind, String target, File file, String fileName) {
+        synchronized (sendLock) {
+            command("SENDFILE_" + kind + " " + target + " " + fileName);
+            LineCompressor.Adaptive adaptive = new LineCompressor.Adaptive();
+            StringBuilder chunk = new StringBuilder();
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    chunk.append(compression ? uploadCompressor.encode(line, adaptive) : line).append('\n');
+                    if (chunk.length() >= UPLOAD_CHUNK_BYTES) {
+                        write(chunk.toString()).join();
+                        chunk.setLength(0);
+                    }
+                }
+            } catch (IOException | CompletionException e) {
+                close();
+                return CompletableFuture.failedFuture(e);
+            }
+            write(chunk.toString());
+            // FILEEND is read as file data, so it cannot carry a tag.
+            return request(false, "FILEEND", "OK File sent", "ERROR ");
+        }
+    }
+
+    private CompletableFuture<String> request(String line, String... replies) {
+        return request(true, line, replies);
+    }
+
+    /**
+     * Sends a command and completes with its reply: the first line starting
+     * with one of {@code replies}, or the ERROR carrying the command's tag.
+     * An untagged request only takes untagged ERROR lines.
+     */
+    private CompletableFuture<String> request(boolean tagged, String line, String... replies) {
+        Pending p;
+        synchronized (sendLock) {
+            p = new Pending(tagged ? Long.toString(++nextTag) : null, replies);
+            synchronized (pending) {
+                pending.add(p);
+            }
+            write((tagged ? "@" + p.tag + " " : "") + line + "\n").whenComplete((v, t) -> {
+                if (t != null) p.reply.completeExceptionally(t);
+            });
+        }
+        return p.reply;
+    }
+
+    private static List<String> names(String reply) {
+        if (reply.startsWith("ERROR ")) return Collections.emptyList();
+        String payload = reply.substring(reply.indexOf(' ') + 1).trim();
+        if (payload.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(payload.split(","));
+    }
+
+    /** Callers hold sendLock, so bytes are queued, and records sealed, in send order. */
+    private CompletableFuture<Void> write(String text) {
+        if (closing) {
+            return CompletableFuture.failedFuture(new IOException("Connection closed"));
+        }
+        ByteBuffer data = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        if (tls != null) {
+            try {
+                data = seal(data);
+            } catch (IOException e) {
+                close();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return queue(data);
+    }
+
+    private CompletableFuture<Void> queue(ByteBuffer data) {
+        Write w = new Write(data);
+        if (!isOpen()) {
+            w.done.completeExceptionally(new IOException("Connection closed"));
+            return w.done;
+        }
+        writes.add(w);
+        drainWrites();
+        return w.done;
+    }
+
+    private ByteBuffer seal(ByteBuffer plain) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(plain.remaining() + 64);
+        ByteBuffer net = ByteBuffer.allocate(tls.getSession().getPacketBufferSize());
+        do {
+            net.clear();
+            SSLEngineResult result = tls.wrap(plain, net);
+            records.write(net.array(), 0, net.position());
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                if (plain.hasRemaining()) throw new SSLException("TLS session closed");
+                break;
+            }
+            if (result.bytesProduced() == 0 && !plain.hasRemaining()) break;
+        } while (plain.hasRemaining() || tls.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+        return ByteBuffer.wrap(records.toByteArray());
+    }
+
+    /** Keeps exactly one write outstanding on the channel. */
+    private void drainWrites() {
+        while (!writes.isEmpty() && writing.compareAndSet(false, true)) {
+            Write next = writes.peek();
+            if (next != null) {
+                channel.write(next.data, next, writeHandler);
+                return;
+            }
+            writing.set(false);
+        }
+    }
+
+    private final CompletionHandler<Integer, Write> writeHandler = new CompletionHandler<Integer, Write>() {
+        public void completed(Integer n, Write w) {
+            if (w.data.hasRemaining()) {
+                channel.write(w.data, w, this);
+                return;
+            }
+            writes.poll();
+            w.done.complete(null);
+            writing.set(false);
+            drainWrites();
+        }
+
+        public void failed(Throwable t, Write w) {
+            closeNow();
+        }
+    };
+
+    private void read() {
+        channel.read(readBuffer, null, readHandler);
+    }
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        public void completed(Integer n, Void attachment) {
+            if (n < 0) {
+                close();
+                return;
+            }
+            try {
+                if (tls == null) {
+                    readBuffer.flip();
+                    consume(readBuffer);
+                    readBuffer.clear();
+                } else if (!unwrapInbound()) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            read();
+        }
+
+        public void failed(Throwable t, Void attachment) {
+            closeNow();
+        }
+    };
+
+    /** Decrypts every complete record in readBuffer; false once the server has closed the session. */
+    private boolean unwrapInbound() throws IOException {
+        readBuffer.flip();
+        try {
+            while (readBuffer.hasRemaining()) {
+                SSLEngineResult result = tls.unwrap(readBuffer, appIn);
+                appIn.flip();
+                consume(appIn);
+                appIn.clear();
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    TlsChannel.runTasks(tls);
+                }
+                if (tls.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    synchronized (sendLock) {
+                        write("");
+                    }
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) return false;
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+            }
+            return true;
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void consume(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '\n') {
+                String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+                partialLine.reset();
+                if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+                handleLine(line);
+            } else {
+                partialLine.write(b);
+            }
+        }
+    }
+
+    private void handleLine(String line) throws IOException {
+        if (compression && line.startsWith(LineCompressor.PREFIX)) {
+            line = decompressor.decode(line);
+        }
+        if (line.startsWith("INFO ")) return;
+        String tag = null;
+        if (line.startsWith("ERROR @")) {
+            int space = line.indexOf(' ', "ERROR @".length());
+            if (space > 0) {
+                tag = line.substring("ERROR @".length(), space);
+                line = "ERROR " + line.substring(space + 1);
+            }
+        }
+        completePending(line, tag);
+        dispatch(ChatEvent.parse(line));
+    }
+
+    private void completePending(String line, String tag) {
+        Pending match = null;
+        synchronized (pending) {
+            Iterator<Pending> it = pending.iterator();
+            while (it.hasNext()) {
+                Pending p = it.next();
+                if (p.reply.isDone()) {
+                    it.remove();
+                } else if (p.accepts(line, tag)) {
+                    it.remove();
+                    match = p;
+                    break;
+                }
+            }
+        }
+        if (match != null) match.reply.complete(line);
+    }
+
+    private void dispatch(ChatEvent event) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                System.out.println("Listener failed: " + e);
+            }
+        }
+        if (publisher.hasSubscribers()) {
+            publisher.submit(event);
+        }
+    }
+
+    /**
+     * Closes the connection. Over TLS, close_notify is queued behind the writes
+     * already pending and the socket is closed once it has been sent, or after
+     * a short timeout; sends made after close fail.
+     */
+    @Override
+    public void close() {
+        if (tls != null) {
+            CompletableFuture<Void> sent = null;
+            synchronized (sendLock) {
+                if (!closing && isOpen()) {
+                    closing = true;
+                    tls.closeOutbound();
+                    try {
+                        sent = queue(seal(ByteBuffer.allocate(0)));
+                    } catch (IOException ignored) {
+                        // The engine failed; there is nothing to send.
+                    }
+                }
+            }
+            if (sent != null) {
+                sent.orTimeout(CLOSE_NOTIFY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .whenComplete((v, t) -> closeNow());
+                return;
+            }
+        }
+        closeNow();
+    }
+
+    private void closeNow() {
+        if (!closed.complete(null)) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        IOException failure = new IOException("Connection closed");
+        Write w;
+        while ((w = writes.poll()) != null) {
+            w.done.completeExceptionally(failure);
+        }
+        synchronized (pending) {
+            for (Pending p : pending) {
+                p.reply.completeExceptionally(failure);
+            }
+            pending.clear();
+        }
+        dispatch(ChatEvent.disconnected());
+        publisher.close();
+    }
+
+    /** Blocking view of the async channel, used only while handshaking. */
+    private static class BlockingChannel implements ByteChannel {
+        private final AsynchronousSocketChannel channel;
+
+        BlockingChannel(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return await(channel.read(dst));
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return await(channel.write(src));
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private static int await(Future<Integer> op) throws IOException {
+            try {
+                return op.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static class Write {
+        final ByteBuffer data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(ByteBuffer data) {
+            this.data = data;
+        }
+    }
+
+    /** A command waiting for the first server line that starts with one of its replies. */
+    private static class Pending {
+        final String tag;   // null if the command was sent without one
+        final String[] replies;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        Pending(String tag, String[] replies) {
+            this.tag = tag;
+            this.replies = replies;
+        }
+
+        /** {@code errorTag} is the tag the server put on an ERROR line, or null. */
+        boolean accepts(String line, String errorTag) {
+            if (errorTag != null) return errorTag.equals(tag);
+            if (line.startsWith("ERROR ") && tag != null) return false;
+            for (String r : replies) {
+                if (line.startsWith(r)) return true;
+            }
+            return false;
+        }
+    }
+}
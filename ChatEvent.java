@@ -0,0 +1,88 @@
+/**
+ * One line from the chat server, parsed. Fields that do not apply to the
+ * event's type are null (or 0 for {@code time}); {@code line} is always the
+ * full, decompressed line as received.
+ */
+public class ChatEvent {
+
+    public enum Type {
+        PRIVATE_MESSAGE,
+        GROUP_MESSAGE,
+        GROUP_INFO,
+        FILE_START,
+        FILE_DATA,
+        FILE_END,
+        SEARCH_RESULT,
+        ERROR,
+        /** Replies to commands: OK, USERS, GROUPS, GROUP_MEMBERS, SEARCH_END, ... */
+        REPLY,
+        DISCONNECTED
+    }
+
+    public final Type type;
+    public final String from;
+    public final String group;
+    public final String text;
+    public final String fileName;
+    public final long time;
+    public final String line;
+
+    private ChatEvent(Type type, String from, String group, String text,
+                      String fileName, long time, String line) {
+        this.type = type;
+        this.from = from;
+        this.group = group;
+        this.text = text;
+        this.fileName = fileName;
+        this.time = time;
+        this.line = line;
+    }
+
+    static ChatEvent disconnected() {
+        return new ChatEvent(Type.DISCONNECTED, null, null, null, null, 0, null);
+    }
+
+    static ChatEvent parse(String line) {
+        if (line.startsWith("PRIVATE_FROM ") || line.startsWith("GROUP_FROM ")) {
+            boolean group = line.startsWith("GROUP_FROM ");
+            String rest = line.substring(line.indexOf(' ') + 1);
+            int sep = rest.indexOf(" : ");
+            if (sep > 0) {
+                return new ChatEvent(group ? Type.GROUP_MESSAGE : Type.PRIVATE_MESSAGE,
+                        rest.substring(0, sep), null, rest.substring(sep + 3), null, 0, line);
+            }
+        } else if (line.startsWith("GROUP_INFO ")) {
+            return new ChatEvent(Type.GROUP_INFO, null, null,
+                    line.substring("GROUP_INFO ".length()), null, 0, line);
+        } else if (line.startsWith("FILESTART_USER ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length >= 3) {
+                return new ChatEvent(Type.FILE_START, parts[1], null, null, parts[2], 0, line);
+            }
+        } else if (line.startsWith("FILESTART_GROUP ")) {
+            String[] parts = line.split(" ", 4);
+            if (parts.length >= 4) {
+                return new ChatEvent(Type.FILE_START, parts[1], parts[2], null, parts[3], 0, line);
+            }
+        } else if (line.startsWith("FILEDATA ")) {
+            return new ChatEvent(Type.FILE_DATA, null, null,
+                    line.substring("FILEDATA ".length()), null, 0, line);
+        } else if (line.equals("FILEEND") || line.startsWith("FILEEND ")) {
+            String hash = line.length() > "FILEEND ".length() ? line.substring("FILEEND ".length()) : null;
+            return new ChatEvent(Type.FILE_END, null, null, hash, null, 0, line);
+        } else if (line.startsWith("SEARCH_RESULT ")) {
+            String[] parts = line.split(" ", 3);
+            int sep = parts.length == 3 ? parts[2].indexOf(" : ") : -1;
+            if (sep > 0) {
+                try {
+                    return new ChatEvent(Type.SEARCH_RESULT, parts[2].substring(0, sep), null,
+                            parts[2].substring(sep + 3), null, Long.parseLong(parts[1]), line);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } else if (line.startsWith("ERROR ")) {
+            return new ChatEvent(Type.ERROR, null, null, line.substring("ERROR ".length()), null, 0, line);
+        }
+        return new ChatEvent(Type.REPLY, null, null, line, null, 0, line);
+    }
+}
@@ -1,83 +1,401 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 public class ChatServer {
 
     private static final int PORT = 12345;
 
-    private static final Map<String, ClientHandler> users = new ConcurrentHashMap<>();
-    private static final Map<String, Set<ClientHandler>> groups = new ConcurrentHashMap<>();
+    // Rate limits are events per second; a value <= 0 disables that limit.
+    private static final long MESSAGE_RATE = Long.getLong("chat.rate.messages", 20);
+    private static final long MESSAGE_BURST = Long.getLong("chat.rate.messages.burst", 40);
+    private static final long COMMAND_RATE = Long.getLong("chat.rate.commands", 10);
+    private static final long COMMAND_BURST = Long.getLong("chat.rate.commands.burst", 20);
+    private static final long FILE_LINE_RATE = Long.getLong("chat.rate.filelines", 2000);
+    private static final long FILE_LINE_BURST = Long.getLong("chat.rate.filelines.burst", 4000);
+    private static final long GROUP_RATE = Long.getLong("chat.rate.group", 100);
+    private static final long GROUP_BURST = Long.getLong("chat.rate.group.burst", 200);
+
+    // Groups with more members than this are fanned out across the fan-out pool.
+    private static final int PARALLEL_FANOUT_THRESHOLD = Integer.getInteger("chat.fanout.threshold", 512);
+    private static final int FANOUT_PARALLELISM = Integer.getInteger("chat.fanout.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static final int FANOUT_CHUNK_WORDS = 8;
+
+    // Recent GROUP_FROM lines kept per group and replayed to members who join. Longer
+    // lines are delivered but not kept, so a group's history holds at most
+    // GROUP_HISTORY * GROUP_HISTORY_LINE characters instead of up to a megabyte per line.
+    private static final int GROUP_HISTORY = Integer.getInteger("chat.group.history", 50);
+    private static final int GROUP_HISTORY_LINE = Integer.getInteger("chat.group.historyLine", 4096);
+
+    private static final File DATA_DIR = new File(System.getProperty("chat.data.dir", "chat-data"));
+    private static final int SEARCH_LIMIT = Integer.getInteger("chat.search.limit", 20);
+    private static final long FILE_STORE_MAX_BYTES = Long.getLong("chat.filestore.maxBytes", 256L << 20);
+
+    // Bytes of pooled I/O buffers that may be checked out before connections stop reading.
+    private static final long MEMORY_BUDGET = Long.getLong("chat.memory.budget", 64L << 20);
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final boolean COMPRESSION_ENABLED =
+            Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+
+    // Clients log in through the server, which is the only process that talks to the DB.
+    // With chat.auth=false a bare username as the first line is accepted unchecked.
+    private static final boolean AUTH_REQUIRED =
+            Boolean.parseBoolean(System.getProperty("chat.auth", "true"));
+
+    // TLS is on when a keystore is given. Handshake I/O runs non-blocking on one selector
+    // thread and only the crypto goes to a small pool, so neither a burst of (re)connects
+    // nor sockets that never say hello occupy threads; the session cache plus the JDK's
+    // stateless session tickets let returning clients skip the full handshake.
+    private static final String TLS_KEYSTORE = System.getProperty("chat.tls.keystore");
+    private static final int TLS_HANDSHAKE_THREADS = Integer.getInteger("chat.tls.handshakeThreads",
+            Runtime.getRuntime().availableProcessors());
+    private static final long TLS_HELLO_TIMEOUT_MILLIS = Long.getLong("chat.tls.helloTimeout", 3_000);
+    private static final long TLS_HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("chat.tls.handshakeTimeout", 10_000);
+    private static final int TLS_SESSION_CACHE = Integer.getInteger("chat.tls.sessionCache", 20_000);
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeout", 86_400);
+
+    // Usernames are interned to dense int IDs at login; everything after that
+    // (membership, fan-out, online lookup) works on the IDs. A user's ID is freed at
+    // logout and reused, so the tables are bounded by peak users online.
+    private static final NameTable userNames = new NameTable();
+    private static final Object onlineLock = new Object();
+    private static volatile AtomicReferenceArray<ClientHandler> online = new AtomicReferenceArray<>(1024);
+    private static final Map<String, Group> groups = new ConcurrentHashMap<>();
+
+    private static final LongAdder rejectedMessages = new LongAdder();
+    private static final LongAdder rejectedCommands = new LongAdder();
+    private static final LongAdder rejectedGroupMessages = new LongAdder();
+    private static final LongAdder delayedFileLines = new LongAdder();
+    private static final LongAdder compressionSavedBytes = new LongAdder();
+    private static final LongAdder fileBytesSaved = new LongAdder();
+
+    // Deflater/Inflater hold a few hundred KB of native memory each, so they are
+    // shared through a pool instead of owned by every connection.
+    private static final Queue<LineCompressor> compressors = new ConcurrentLinkedQueue<>();
+
+    private static MessageIndex messageIndex = null;
+    private static FileStore fileStore = null;
+
+    private static final BufferPool bufferPool = new BufferPool(MEMORY_BUDGET);
+
+    private static final ForkJoinPool fanOutPool = new ForkJoinPool(FANOUT_PARALLELISM);
+
+    private static SSLContext tlsContext = null;
+    private static ExecutorService handshakePool = null;
+    private static Handshakes handshakes = null;
 
     public static void main(String[] args) throws IOException {
         System.out.println("Server started on port " + PORT + " ...");
-        ServerSocket serverSocket = new ServerSocket(PORT);
+        if (AUTH_REQUIRED && !DatabaseManager.testConnection()) {
+            System.out.println("WARNING: database not reachable; logins will fail until it is.");
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT));
 
-        groups.put("GroupA", ConcurrentHashMap.newKeySet());
-        groups.put("GroupB", ConcurrentHashMap.newKeySet());
-        groups.put("GroupC", ConcurrentHashMap.newKeySet());
+        if (TLS_KEYSTORE != null) {
+            try {
+                tlsContext = TlsChannel.serverContext(new File(TLS_KEYSTORE),
+                        System.getProperty("chat.tls.password", "").toCharArray(),
+                        TLS_SESSION_CACHE, TLS_SESSION_TIMEOUT_SECONDS);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load TLS keystore " + TLS_KEYSTORE, e);
+            }
+            handshakePool = Executors.newFixedThreadPool(TLS_HANDSHAKE_THREADS, daemon("tls-handshake"));
+            handshakes = new Handshakes();
+            daemon("tls-handshake-selector").newThread(handshakes).start();
+            System.out.println("TLS enabled");
+        }
+
+        createGroup("GroupA");
+        createGroup("GroupB");
+        createGroup("GroupC");
+
+        try {
+            messageIndex = new MessageIndex(new File(DATA_DIR, "history"));
+            MessageIndex index = messageIndex;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    index.close();
+                } catch (IOException ignored) {
+                }
+            }));
+        } catch (IOException e) {
+            System.out.println("Chat history disabled: " + e.getMessage());
+        }
+        try {
+            fileStore = new FileStore(new File(DATA_DIR, "files"), FILE_STORE_MAX_BYTES);
+        } catch (IOException e) {
+            System.out.println("File store disabled: " + e.getMessage());
+        }
 
         while (true) {
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("New client connected " + clientSocket.getRemoteSocketAddress());
-            new Thread(new ClientHandler(clientSocket)).start();
+            SocketChannel clientChannel = serverChannel.accept();
+            System.out.println("New client connected " + clientChannel.getRemoteAddress());
+            if (tlsContext == null) {
+                new Thread(new ClientHandler(clientChannel, bufferPool.reader())).start();
+            } else {
+                // Handshake flights go out as several small writes; don't let Nagle hold them back.
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                handshakes.add(clientChannel);
+            }
         }
     }
 
+    /**
+     * Drives every pending TLS handshake from one selector thread with
+     * non-blocking I/O, so a client that connects and stays quiet costs a
+     * registration rather than a thread. Only the engine's delegated tasks run
+     * on the handshake pool. A client gets {@code chat.tls.helloTimeout} to send
+     * its first bytes and {@code chat.tls.handshakeTimeout} to finish; a finished
+     * connection goes back to blocking mode and is handed to its relay thread.
+     */
+    static final class Handshakes implements Runnable {
+        private static final long SWEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+        private final Selector selector;
+        private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        private final List<Handshake> finished = new ArrayList<>();
+        private long lastSweep = System.nanoTime();
+
+        Handshakes() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel channel) {
+            submit(() -> register(channel));
+        }
+
+        private void submit(Runnable task) {
+            inbox.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(SWEEP_NANOS));
+                    for (Runnable task; (task = inbox.poll()) != null; ) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        step((Handshake) key.attachment());
+                    }
+                    if (System.nanoTime() - lastSweep >= SWEEP_NANOS) {
+                        sweep();
+                    }
+                    if (!finished.isEmpty()) {
+                        handOff();
+                    }
+                } catch (IOException e) {
+                    System.out.println("TLS handshake selector failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            SSLEngine engine = tlsContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            BufferPool.Reader reads = bufferPool.reader();
+            Handshake h = new Handshake(new TlsChannel(channel, engine, bufferPool, reads), engine, reads);
+            try {
+                channel.configureBlocking(false);
+                engine.beginHandshake();
+                h.key = channel.register(selector, SelectionKey.OP_READ, h);
+            } catch (IOException e) {
+                System.out.println("TLS handshake failed: " + e.getMessage());
+                h.tls.abortHandshake();
+            }
+        }
+
+        private void step(Handshake h) {
+            if (!h.key.isValid()) return;
+            h.started = true;
+            int next;
+            try {
+                next = h.tls.handshakeStep();
+            } catch (IOException | RuntimeException e) {
+                fail(h, e.getMessage());
+                return;
+            }
+            if (next == TlsChannel.HANDSHAKE_DONE) {
+                h.key.cancel();
+                finished.add(h);
+            } else if (next == TlsChannel.HANDSHAKE_TASKS) {
+                h.key.interestOps(0);
+                handshakePool.execute(() -> {
+                    try {
+                        TlsChannel.runTasks(h.engine);
+                    } finally {
+                        submit(() -> step(h));
+                    }
+                });
+            } else {
+                h.key.interestOps(next);
+            }
+        }
+
+        private void sweep() {
+            long now = System.nanoTime();
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Handshake h = (Handshake) key.attachment();
+                if (!key.isValid()) continue;
+                long limit = h.started ? TLS_HANDSHAKE_TIMEOUT_MILLIS : TLS_HELLO_TIMEOUT_MILLIS;
+                if (now - h.since > TimeUnit.MILLISECONDS.toNanos(limit)) {
+                    fail(h, h.started ? "timed out" : "no hello");
+                }
+            }
+        }
+
+        private void fail(Handshake h, String reason) {
+            System.out.println("TLS handshake failed: " + reason);
+            h.key.cancel();
+            h.tls.abortHandshake();
+        }
+
+        /** Cancelled keys are only deregistered by a select, which blocking mode needs. */
+        private void handOff() throws IOException {
+            selector.selectNow();
+            for (Handshake h : finished) {
+                try {
+                    ((SocketChannel) h.key.channel()).configureBlocking(true);
+                } catch (IOException e) {
+                    System.out.println("TLS handshake failed: " + e.getMessage());
+                    h.tls.abortHandshake();
+                    continue;
+                }
+                new Thread(new ClientHandler(h.tls, h.reads)).start();
+            }
+            finished.clear();
+        }
+
+        private static final class Handshake {
+            final TlsChannel tls;
+            final SSLEngine engine;
+            final BufferPool.Reader reads;
+            final long since = System.nanoTime();
+            SelectionKey key;
+            boolean started = false;
+
+            Handshake(TlsChannel tls, SSLEngine engine, BufferPool.Reader reads) {
+                this.tls = tls;
+                this.engine = engine;
+                this.reads = reads;
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
     static class ClientHandler implements Runnable {
 
-        private final Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
+        // No streams or buffers are owned per connection: reads and writes
+        // borrow pooled buffers only while bytes are actually moving.
+        private final ByteChannel channel;
+        private final LineReader in;
+        private final Object writeLock = new Object();
+        // History sequences replayed on joining the current group, ascending; guarded by writeLock.
+        private long[] replayed = new long[0];
 
         private String username = null;
-        private String currentGroup = null;
+        private int userId = -1;
+        // Tag of the command being handled, echoed on its ERROR reply; own thread only.
+        private String replyTag = null;
+        private Group currentGroup = null;
 
         
         private boolean sendingFile = false;
         private ClientHandler fileTargetHandler = null; 
-        private String fileTargetGroup = null;          
+        private Group fileTargetGroup = null;          
         private String fileName = null;
+        private LineCompressor.Adaptive fileCompression = null;
+        private FileStore.Upload upload = null;
 
-        ClientHandler(Socket socket) {
-            this.socket = socket;
+        private volatile boolean compression = false;
+
+        private final TokenBucket messageLimit = new TokenBucket(MESSAGE_RATE, MESSAGE_BURST);
+        private final TokenBucket commandLimit = new TokenBucket(COMMAND_RATE, COMMAND_BURST);
+        private final TokenBucket fileLineLimit = new TokenBucket(FILE_LINE_RATE, FILE_LINE_BURST);
+
+        ClientHandler(ByteChannel channel, BufferPool.Reader reads) {
+            this.channel = channel;
+            this.in = new LineReader(channel, reads);
         }
 
         @Override
         public void run() {
             try {
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                String nameLine = in.readLine();
-                if (nameLine == null || nameLine.trim().isEmpty()) {
-                    socket.close();
+                String nameLine = authenticate();
+                if (nameLine == null) {
+                    channel.close();
                     return;
                 }
-                username = nameLine.trim();
+                username = nameLine;
 
-                synchronized (users) {
-                    if (users.containsKey(username)) {
-                        out.println("ERROR Username already in use. Disconnecting.");
-                        socket.close();
-                        return;
-                    }
-                    users.put(username, this);
+                int id = register(username, this);
+                if (id < 0) {
+                    send("ERROR Username already in use. Disconnecting.");
+                    channel.close();
+                    return;
                 }
+                userId = id;
 
                 System.out.println(username + " is online");
 
                 String line;
                 while ((line = in.readLine()) != null) {
+                    replyTag = null;
+                    if (compression && line.startsWith(LineCompressor.PREFIX)) {
+                        line = decompress(line);
+                    }
                     line = line.trim();
                     if (line.isEmpty()) continue;
 
                     if (sendingFile) {
+                        throttleFileData();
                         handleFileData(line);
                         continue;
                     }
 
+                    line = untag(line);
+                    if (!admit(line)) continue;
+
                     if (line.equals("LIST_USERS")) {
                         handleListUsers();
                     } else if (line.startsWith("PRIVMSG ")) {
@@ -94,8 +412,20 @@ public class ChatServer {
                         handleGroupMsg(line);
                     } else if (line.startsWith("SENDFILE_GROUP ")) {
                         handleSendFileGroupStart(line);
+                    } else if (line.startsWith("COMPRESS ")) {
+                        handleCompress(line);
+                    } else if (line.startsWith("SENDHASH_USER ")) {
+                        handleSendHash(line, false);
+                    } else if (line.startsWith("SENDHASH_GROUP ")) {
+                        handleSendHash(line, true);
+                    } else if (line.startsWith("FETCH_FILE ")) {
+                        handleFetchFile(line);
+                    } else if (line.startsWith("SEARCH ")) {
+                        handleSearch(line);
+                    } else if (line.equals("STATS")) {
+                        handleStats();
                     } else {
-                        out.println("ERROR Unknown command");
+                        send("ERROR Unknown command");
                     }
                 }
             } catch (IOException e) {
@@ -105,209 +435,1009 @@ public class ChatServer {
             }
         }
 
+        /**
+         * Handles LOGIN and SIGNUP until one login succeeds, and returns the
+         * username, or null if the client went away first.
+         */
+        private String authenticate() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                line = untag(line);
+                if (!line.startsWith("LOGIN ") && !line.startsWith("SIGNUP ")) {
+                    if (!AUTH_REQUIRED) return line.trim();
+                    send("ERROR Please LOGIN or SIGNUP first");
+                    continue;
+                }
+                if (!commandLimit.tryAcquire()) {
+                    rejectedCommands.increment();
+                    send("ERROR Rate limit exceeded, command ignored");
+                    continue;
+                }
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 3 || parts[1].trim().isEmpty()) {
+                    send("ERROR Usage: " + parts[0] + " <username> <password>");
+                    continue;
+                }
+                String name = parts[1].trim();
+                String password = parts[2];
+                if (parts[0].equals("LOGIN")) {
+                    if (findOnline(name) != null) {
+                        send("ERROR Username already in use");
+                    } else if (DatabaseManager.authenticateUser(name, password)) {
+                        send("OK Login " + name);
+                        return name;
+                    } else {
+                        send("ERROR Invalid username or password");
+                    }
+                } else if (DatabaseManager.userExists(name)) {
+                    send("ERROR Username already taken");
+                } else if (password.length() < 6) {
+                    send("ERROR Password too short");
+                } else if (DatabaseManager.registerUser(name, password)) {
+                    send("OK Signup " + name);
+                } else {
+                    send("ERROR Signup failed");
+                }
+            }
+            return null;
+        }
+
+        private boolean admit(String line) {
+            if (line.startsWith("PRIVMSG ") || line.startsWith("GROUPMSG ")) {
+                if (!messageLimit.tryAcquire()) {
+                    rejectedMessages.increment();
+                    send("ERROR Rate limit exceeded, message dropped");
+                    return false;
+                }
+            } else if (line.startsWith("SENDFILE_USER ") || line.startsWith("SENDFILE_GROUP ")) {
+                // The file follows without waiting for a reply, so dropping the start
+                // would run every file line as a command. Delay it instead.
+                long waitNanos = commandLimit.reserve();
+                if (waitNanos > 0) {
+                    delayedFileLines.increment();
+                    LockSupport.parkNanos(waitNanos);
+                }
+            } else if (!commandLimit.tryAcquire()) {
+                rejectedCommands.increment();
+                send("ERROR Rate limit exceeded, command ignored");
+                return false;
+            }
+            return true;
+        }
+
+        // File lines are delayed rather than dropped so the relayed file stays intact.
+        private void throttleFileData() {
+            long waitNanos = fileLineLimit.reserve();
+            if (waitNanos > 0) {
+                delayedFileLines.increment();
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+
+        private void handleStats() {
+            send("STATS rejected_messages=" + rejectedMessages.sum()
+                    + " rejected_commands=" + rejectedCommands.sum()
+                    + " rejected_group_messages=" + rejectedGroupMessages.sum()
+                    + " delayed_file_lines=" + delayedFileLines.sum()
+                    + " compression_saved_bytes=" + compressionSavedBytes.sum()
+                    + " file_bytes_saved=" + fileBytesSaved.sum()
+                    + " buffer_bytes_in_flight=" + bufferPool.inFlightBytes()
+                    + " buffer_bytes_idle=" + bufferPool.idleBytes());
+        }
+
+        private void handleCompress(String line) {
+            String algorithm = line.substring("COMPRESS".length()).trim();
+            if (!COMPRESSION_ENABLED || !algorithm.equals(LineCompressor.ALGORITHM)) {
+                send("ERROR Compression not supported");
+                return;
+            }
+            send("OK Compression " + LineCompressor.ALGORITHM);
+            compression = true;
+        }
+
+        private String decompress(String line) throws IOException {
+            LineCompressor codec = borrowCompressor();
+            try {
+                return codec.decode(line);
+            } catch (LineCompressor.LineTooLongException e) {
+                send("ERROR Compressed line too long. Disconnecting.");
+                throw e;
+            } catch (IOException e) {
+                // A raw line that only looks compressed, e.g. file content starting with "Z ".
+                return line;
+            } finally {
+                compressors.offer(codec);
+            }
+        }
+
+        /**
+         * Strips an optional {@code @<tag> } prefix from a command and remembers
+         * the tag, so an ERROR in reply can say which command failed. Commands
+         * that succeed silently (PRIVMSG, GROUPMSG, ...) have no other way of
+         * being matched to their error.
+         */
+        private String untag(String line) {
+            replyTag = null;
+            if (!line.startsWith("@")) return line;
+            int space = line.indexOf(' ');
+            if (space < 2) return line;
+            replyTag = line.substring(1, space);
+            return line.substring(space + 1).trim();
+        }
+
+        void send(String line) {
+            // Only this client's own thread sends it ERROR lines.
+            if (line.startsWith("ERROR ") && replyTag != null) {
+                line = "ERROR @" + replyTag + line.substring("ERROR".length());
+            }
+            send(new Outbound(line));
+        }
+
+        void send(Outbound message) {
+            synchronized (writeLock) {
+                // Already sent in the catch-up when this client joined.
+                if (message.seq >= 0 && Arrays.binarySearch(replayed, message.seq) >= 0) return;
+                write(message.forClient(this) + "\n");
+            }
+        }
+
+        /** Writes several lines with a single write. */
+        void send(List<Outbound> batch) {
+            StringBuilder sb = new StringBuilder();
+            for (Outbound message : batch) {
+                sb.append(message.forClient(this)).append('\n');
+            }
+            write(sb.toString());
+        }
+
+        private void write(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            synchronized (writeLock) {
+                ByteBuffer buffer = bufferPool.acquire(bytes.length);
+                try {
+                    for (int offset = 0; offset < bytes.length; ) {
+                        int n = Math.min(buffer.capacity(), bytes.length - offset);
+                        buffer.clear();
+                        buffer.put(bytes, offset, n);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        offset += n;
+                    }
+                } catch (IOException e) {
+                    // The line is dropped; closing the channel lets this
+                    // client's own thread notice and clean up.
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+
+        private void handleSearch(String line) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) {
+                send("ERROR Usage: SEARCH <user|group> <terms>");
+                return;
+            }
+            if (messageIndex == null) {
+                send("ERROR Search is not available");
+                return;
+            }
+            String conversation = groups.containsKey(parts[1])
+                    ? "g:" + parts[1]
+                    : privateConversation(username, parts[1]);
+
+            List<MessageIndex.Hit> hits;
+            try {
+                hits = messageIndex.search(conversation, parts[2], SEARCH_LIMIT);
+            } catch (IOException e) {
+                System.out.println("Search failed: " + e.getMessage());
+                send("ERROR Search failed");
+                return;
+            }
+            List<Outbound> batch = new ArrayList<>();
+            for (MessageIndex.Hit hit : hits) {
+                batch.add(new Outbound("SEARCH_RESULT " + hit.time + " " + hit.from + " : " + hit.text));
+            }
+            batch.add(new Outbound("SEARCH_END " + hits.size()));
+            send(batch);
+        }
+
+        private void record(String conversation, String message) {
+            if (messageIndex == null) return;
+            try {
+                messageIndex.add(conversation, username, message);
+            } catch (IOException e) {
+                System.out.println("History write failed: " + e.getMessage());
+            }
+        }
 
         private void handleListUsers() {
             StringBuilder sb = new StringBuilder();
             sb.append("USERS ");
+            AtomicReferenceArray<ClientHandler> table = online;
             boolean first = true;
-            for (String u : users.keySet()) {
+            for (int id = 0; id < table.length(); id++) {
+                ClientHandler ch = table.get(id);
+                if (ch == null) continue;
                 if (!first) sb.append(",");
-                sb.append(u);
+                sb.append(ch.username);
                 first = false;
             }
-            out.println(sb.toString());
+            send(sb.toString());
         }
 
         private void handlePrivMsg(String line) {
             String[] parts = line.split(" ", 3);
             if (parts.length < 3 || !parts[2].startsWith(":")) {
-                out.println("ERROR Usage: PRIVMSG <user> :<message>");
+                send("ERROR Usage: PRIVMSG <user> :<message>");
                 return;
             }
             String targetUser = parts[1];
             String message = parts[2].substring(1);
 
-            ClientHandler target = users.get(targetUser);
+            ClientHandler target = findOnline(targetUser);
             if (target != null) {
-                target.out.println("PRIVATE_FROM " + username + " : " + message);
+                target.send("PRIVATE_FROM " + username + " : " + message);
+                record(privateConversation(username, targetUser), message);
             } else {
-                out.println("ERROR User not found");
+                send("ERROR User not found");
             }
         }
 
         private void handleSendFileUserStart(String line) {
             String[] parts = line.split(" ", 3);
             if (parts.length < 3) {
-                out.println("ERROR Usage: SENDFILE_USER <user> <filename>");
+                send("ERROR Usage: SENDFILE_USER <user> <filename>");
                 return;
             }
             String targetUser = parts[1];
             fileName = parts[2];
 
-            ClientHandler target = users.get(targetUser);
+            ClientHandler target = findOnline(targetUser);
             if (target == null) {
-                out.println("ERROR User not found");
+                send("ERROR User not found");
                 return;
             }
 
             fileTargetHandler = target;
             fileTargetGroup = null;
+            fileCompression = new LineCompressor.Adaptive();
+            upload = beginUpload();
             sendingFile = true;
 
-            target.out.println("FILESTART_USER " + username + " " + fileName);
+            target.send("FILESTART_USER " + username + " " + fileName);
         }
 
         
 
         private void handleListGroups() {
-            out.println("GROUPS GroupA,GroupB,GroupC");
+            send("GROUPS GroupA,GroupB,GroupC");
         }
 
         private void handleJoinGroup(String line) {
             String groupName = line.substring("JOIN_GROUP".length()).trim();
-            if (!groups.containsKey(groupName)) {
-                out.println("ERROR Group not found");
+            Group group = groups.get(groupName);
+            if (group == null) {
+                send("ERROR Group not found");
                 return;
             }
 
             
-            if (currentGroup != null && groups.containsKey(currentGroup)) {
-                Set<ClientHandler> oldSet = groups.get(currentGroup);
-                oldSet.remove(this);
+            if (currentGroup != null) {
+                currentGroup.members.remove(userId);
                 broadcastToGroup(currentGroup,
                         "GROUP_INFO " + username + " has left the group");
             }
 
-            currentGroup = groupName;
-            groups.get(groupName).add(this);
-            out.println("OK Joined group " + groupName);
-            broadcastToGroup(groupName,
+            // Become a member before taking the snapshot, so a message is either in
+            // the replay or delivered live; holding writeLock keeps live messages
+            // behind the OK line and the replay.
+            synchronized (writeLock) {
+                currentGroup = group;
+                group.members.add(userId);
+                List<Outbound> catchUp = new ArrayList<>();
+                catchUp.add(new Outbound("OK Joined group " + groupName));
+                group.history.copyTo(catchUp);
+                replayed = new long[catchUp.size() - 1];
+                for (int i = 0; i < replayed.length; i++) {
+                    replayed[i] = catchUp.get(i + 1).seq;
+                }
+                send(catchUp);
+            }
+            broadcastToGroup(group,
                     "GROUP_INFO " + username + " has joined the group");
         }
 
         private void handleListGroupMembers() {
-            if (currentGroup == null || !groups.containsKey(currentGroup)) {
-                out.println("GROUP_MEMBERS ");
+            if (currentGroup == null) {
+                send("GROUP_MEMBERS ");
                 return;
             }
             StringBuilder sb = new StringBuilder();
             sb.append("GROUP_MEMBERS ");
+            AtomicLongArray words = currentGroup.members.words();
             boolean first = true;
-            for (ClientHandler ch : groups.get(currentGroup)) {
-                if (!first) sb.append(",");
-                sb.append(ch.username);
-                first = false;
+            for (int w = 0; w < words.length(); w++) {
+                for (long bits = words.get(w); bits != 0; bits &= bits - 1) {
+                    ClientHandler ch = handler((w << 6) + Long.numberOfTrailingZeros(bits));
+                    if (ch == null) continue;
+                    if (!first) sb.append(",");
+                    sb.append(ch.username);
+                    first = false;
+                }
             }
-            out.println(sb.toString());
+            send(sb.toString());
         }
 
         private void handleGroupMsg(String line) {
-            if (currentGroup == null || !groups.containsKey(currentGroup)) {
-                out.println("ERROR Join a group first");
+            if (currentGroup == null) {
+                send("ERROR Join a group first");
                 return;
             }
             
             if (!line.startsWith("GROUPMSG :")) {
-                out.println("ERROR Usage: GROUPMSG :<message>");
+                send("ERROR Usage: GROUPMSG :<message>");
                 return;
             }
             String msg = line.substring("GROUPMSG :".length());
+
+            if (!currentGroup.limit.tryAcquire()) {
+                rejectedGroupMessages.increment();
+                send("ERROR Group " + currentGroup.name + " is busy, message dropped");
+                return;
+            }
             
             
-            broadcastToGroupIncludingSender(currentGroup,
-                    "GROUP_FROM " + username + " : " + msg);
+            Outbound outbound = new Outbound("GROUP_FROM " + username + " : " + msg);
+            currentGroup.history.add(outbound);
+            record("g:" + currentGroup.name, msg);
+            deliver(currentGroup, outbound, null);
         }
 
         private void handleSendFileGroupStart(String line) {
             
             String[] parts = line.split(" ", 3);
             if (parts.length < 3) {
-                out.println("ERROR Usage: SENDFILE_GROUP <group> <filename>");
+                send("ERROR Usage: SENDFILE_GROUP <group> <filename>");
                 return;
             }
             String groupName = parts[1];
             fileName = parts[2];
 
-            if (!groups.containsKey(groupName)) {
-                out.println("ERROR Group not found");
+            Group group = groups.get(groupName);
+            if (group == null) {
+                send("ERROR Group not found");
                 return;
             }
 
             fileTargetHandler = null;
-            fileTargetGroup = groupName;
+            fileTargetGroup = group;
+            fileCompression = new LineCompressor.Adaptive();
+            upload = beginUpload();
             sendingFile = true;
 
-            for (ClientHandler ch : groups.get(groupName)) {
-                if (ch != this) {
-                    ch.out.println("FILESTART_GROUP " + username + " " + groupName + " " + fileName);
-                }
-            }
+            deliver(group, new Outbound("FILESTART_GROUP " + username + " " + groupName + " " + fileName), this);
         }
 
-        private void broadcastToGroup(String groupName, String message) {
-            Set<ClientHandler> members = groups.get(groupName);
-            if (members == null) return;
-            for (ClientHandler ch : members) {
-                ch.out.println(message);
-            }
+        private void broadcastToGroup(Group group, String message) {
+            deliver(group, new Outbound(message), null);
         }
 
-        private void broadcastToGroupIncludingSender(String groupName, String message) {
-            Set<ClientHandler> members = groups.get(groupName);
-            if (members == null) return;
-            for (ClientHandler ch : members) {
-                ch.out.println(message);
-            }
-        }
 
 
         private void handleFileData(String line) {
             if (!sendingFile) return;
 
             if (line.equals("FILEEND")) {
+                String hash = finishUpload();
+                relay(new Outbound(hash != null ? "FILEEND " + hash : "FILEEND"),
+                        fileTargetHandler, fileTargetGroup);
                 if (fileTargetHandler != null) {
-                    fileTargetHandler.out.println("FILEEND");
-                    out.println("OK File sent to " + fileTargetHandler.username);
-                } else if (fileTargetGroup != null && groups.containsKey(fileTargetGroup)) {
-                    for (ClientHandler ch : groups.get(fileTargetGroup)) {
-                        if (ch != this) {
-                            ch.out.println("FILEEND");
-                        }
-                    }
-                    out.println("OK File sent to group " + fileTargetGroup);
+                    send("OK File sent to " + fileTargetHandler.username);
+                } else if (fileTargetGroup != null) {
+                    send("OK File sent to group " + fileTargetGroup.name);
                 }
                 sendingFile = false;
                 fileTargetHandler = null;
                 fileTargetGroup = null;
                 fileName = null;
+                fileCompression = null;
             } else {
-                if (fileTargetHandler != null) {
-                    fileTargetHandler.out.println("FILEDATA " + line);
-                } else if (fileTargetGroup != null && groups.containsKey(fileTargetGroup)) {
-                    for (ClientHandler ch : groups.get(fileTargetGroup)) {
-                        if (ch != this) {
-                            ch.out.println("FILEDATA " + line);
-                        }
+                if (upload != null) {
+                    try {
+                        upload.write(line);
+                    } catch (IOException e) {
+                        System.out.println("File store write failed: " + e.getMessage());
+                        upload.abort();
+                        upload = null;
                     }
                 }
+                relay(new Outbound("FILEDATA " + line, fileCompression), fileTargetHandler, fileTargetGroup);
             }
         }
 
-        private void cleanup() {
+        private void relay(Outbound message, ClientHandler target, Group group) {
+            if (target != null) {
+                target.send(message);
+            } else if (group != null) {
+                deliver(group, message, this);
+            }
+        }
+
+        private FileStore.Upload beginUpload() {
+            if (fileStore == null) return null;
             try {
-                if (username != null) {
-                    users.remove(username);
-                    System.out.println(username + " has gone offline");
+                return fileStore.begin();
+            } catch (IOException e) {
+                System.out.println("File store write failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private String finishUpload() {
+            if (upload == null) return null;
+            try {
+                return upload.finish();
+            } catch (IOException e) {
+                System.out.println("File store write failed: " + e.getMessage());
+                return null;
+            } finally {
+                upload = null;
+            }
+        }
+
+        /** Sends a file the store already has, so the client can skip the upload. */
+        private void handleSendHash(String line, boolean toGroup) {
+            String[] parts = line.split(" ", 4);
+            if (parts.length < 4) {
+                send(toGroup
+                        ? "ERROR Usage: SENDHASH_GROUP <group> <hash> <filename>"
+                        : "ERROR Usage: SENDHASH_USER <user> <hash> <filename>");
+                return;
+            }
+            String hash = parts[2];
+            String name = parts[3];
+
+            ClientHandler target = null;
+            Group group = null;
+            if (toGroup) {
+                group = groups.get(parts[1]);
+                if (group == null) {
+                    send("ERROR Group not found");
+                    return;
+                }
+            } else {
+                target = findOnline(parts[1]);
+                if (target == null) {
+                    send("ERROR User not found");
+                    return;
+                }
+            }
+
+            File stored = fileStore != null ? fileStore.get(hash) : null;
+            if (stored == null) {
+                send("NEED_FILE " + hash);
+                return;
+            }
+            String start = toGroup
+                    ? "FILESTART_GROUP " + username + " " + group.name + " " + name
+                    : "FILESTART_USER " + username + " " + name;
+            try {
+                relayStored(stored, hash, start, target, group);
+            } catch (IOException e) {
+                System.out.println("File store read failed: " + e.getMessage());
+                send("NEED_FILE " + hash);
+                return;
+            }
+            fileBytesSaved.add(stored.length());
+            send(toGroup ? "OK File sent to group " + group.name : "OK File sent to " + target.username);
+        }
+
+        private void handleFetchFile(String line) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) {
+                send("ERROR Usage: FETCH_FILE <hash> <filename>");
+                return;
+            }
+            File stored = fileStore != null ? fileStore.get(parts[1]) : null;
+            if (stored == null) {
+                send("ERROR File not found");
+                return;
+            }
+            try {
+                relayStored(stored, parts[1], "FILESTART_USER server " + parts[2], this, null);
+            } catch (IOException e) {
+                System.out.println("File store read failed: " + e.getMessage());
+                send("ERROR File not found");
+            }
+        }
+
+        private void relayStored(File stored, String hash, String startLine,
+                                 ClientHandler target, Group group) throws IOException {
+            try (BufferedReader fr = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(stored), StandardCharsets.UTF_8))) {
+                relay(new Outbound(startLine), target, group);
+                LineCompressor.Adaptive adaptive = new LineCompressor.Adaptive();
+                String l;
+                while ((l = fr.readLine()) != null) {
+                    relay(new Outbound("FILEDATA " + l, adaptive), target, group);
                 }
-                if (currentGroup != null && groups.containsKey(currentGroup)) {
-                    Set<ClientHandler> set = groups.get(currentGroup);
-                    set.remove(this);
+            }
+            relay(new Outbound("FILEEND " + hash), target, group);
+        }
+
+        private void cleanup() {
+            try {
+                // Leave the group before giving up the ID, so its bit is clear
+                // by the time another user can be handed the same ID.
+                if (currentGroup != null) {
+                    currentGroup.members.remove(userId);
                     broadcastToGroup(currentGroup,
                             "GROUP_INFO " + username + " has left the group");
                 }
-                socket.close();
+                if (userId >= 0) {
+                    unregister(userId, username, this);
+                    System.out.println(username + " has gone offline");
+                }
+                if (upload != null) {
+                    upload.abort();
+                }
+                in.close();
+                channel.close();
             } catch (IOException ignored) {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads UTF-8 lines from a channel. While the connection is idle it waits on
+     * a one-byte probe; a pooled buffer is borrowed once data arrives and given
+     * back as soon as no partial line is left in it.
+     */
+    static final class LineReader {
+        private final ReadableByteChannel channel;
+        private final BufferPool.Reader reads;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private ByteBuffer buffer = null;
+
+        LineReader(ReadableByteChannel channel, BufferPool.Reader reads) {
+            this.channel = channel;
+            this.reads = reads;
+        }
+
+        String readLine() throws IOException {
+            while (true) {
+                if (buffer == null) {
+                    probe.clear();
+                    if (channel.read(probe) < 0) return null;
+                    probe.flip();
+                    buffer = borrow(READ_BUFFER_SIZE);
+                    buffer.put(probe);
+                    buffer.flip();
+                }
+                String line = takeLine();
+                if (line != null) {
+                    if (!buffer.hasRemaining()) {
+                        close();
+                    }
+                    return line;
+                }
+                if (!fill()) return null;
+            }
+        }
+
+        void close() {
+            if (buffer != null) {
+                reads.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private String takeLine() {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = i > buffer.position() && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] bytes = new byte[end - buffer.position()];
+                    buffer.get(bytes);
+                    buffer.position(i + 1);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private boolean fill() throws IOException {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= BufferPool.maxSize()) {
+                    throw new IOException("Line too long");
+                }
+                // Taken at once: this reader already holds a buffer.
+                ByteBuffer bigger = borrow(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                reads.release(buffer);
+                buffer = bigger;
+            }
+            int n = channel.read(buffer);
+            buffer.flip();
+            return n >= 0;
+        }
+
+        private ByteBuffer borrow(int size) throws IOException {
+            try {
+                return reads.acquire(size);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static String privateConversation(String a, String b) {
+        return a.compareTo(b) < 0 ? "u:" + a + "|" + b : "u:" + b + "|" + a;
+    }
+
+    private static void createGroup(String name) {
+        groups.put(name, new Group(name));
+    }
+
+    private static ClientHandler handler(int userId) {
+        AtomicReferenceArray<ClientHandler> table = online;
+        return userId < table.length() ? table.get(userId) : null;
+    }
+
+    private static ClientHandler findOnline(String username) {
+        int id = userNames.find(username);
+        return id >= 0 ? handler(id) : null;
+    }
+
+    /** Interns the name and marks it online; returns its ID, or -1 if that user is already online. */
+    private static int register(String username, ClientHandler ch) {
+        synchronized (onlineLock) {
+            int userId = userNames.intern(username);
+            AtomicReferenceArray<ClientHandler> table = online;
+            if (userId >= table.length()) {
+                AtomicReferenceArray<ClientHandler> grown =
+                        new AtomicReferenceArray<>(Math.max(userId + 1, table.length() * 2));
+                for (int i = 0; i < table.length(); i++) {
+                    grown.set(i, table.get(i));
+                }
+                online = table = grown;
+            }
+            return table.compareAndSet(userId, null, ch) ? userId : -1;
+        }
+    }
+
+    private static void unregister(int userId, String username, ClientHandler ch) {
+        synchronized (onlineLock) {
+            if (online.compareAndSet(userId, ch, null)) {
+                userNames.release(username, userId);
+            }
+        }
+    }
+
+    /**
+     * Sends one message to every online member of a group, except {@code skip}.
+     * Large groups are split into word ranges of the member bitmap and delivered
+     * in parallel; the caller still waits, so messages from one sender stay in order.
+     */
+    private static void deliver(Group group, Outbound message, ClientHandler skip) {
+        AtomicLongArray words = group.members.words();
+        if (group.members.size() > PARALLEL_FANOUT_THRESHOLD) {
+            message.prepare();
+            fanOutPool.invoke(new FanOut(words, 0, words.length(), message, skip));
+        } else {
+            deliver(words, 0, words.length(), message, skip);
+        }
+    }
+
+    private static void deliver(AtomicLongArray words, int from, int to,
+                                Outbound message, ClientHandler skip) {
+        for (int w = from; w < to; w++) {
+            for (long bits = words.get(w); bits != 0; bits &= bits - 1) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+                ClientHandler ch = handler(id);
+                // Re-check the bit: the member may have left and its ID gone to someone else.
+                if (ch != null && ch != skip && (words.get(w) & (1L << id)) != 0) {
+                    ch.send(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers one chunk of a large group per leaf. Sends block on slow
+     * sockets, so each leaf runs as a managed block: the pool adds a worker
+     * while it waits instead of letting a few full TCP windows stall every
+     * broadcast on the server.
+     */
+    @SuppressWarnings("serial")
+    static final class FanOut extends RecursiveAction implements ForkJoinPool.ManagedBlocker {
+        private final AtomicLongArray words;
+        private final int from;
+        private final int to;
+        private final Outbound message;
+        private final ClientHandler skip;
+
+        FanOut(AtomicLongArray words, int from, int to, Outbound message, ClientHandler skip) {
+            this.words = words;
+            this.from = from;
+            this.to = to;
+            this.message = message;
+            this.skip = skip;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FANOUT_CHUNK_WORDS) {
+                try {
+                    ForkJoinPool.managedBlock(this);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new FanOut(words, from, mid, message, skip),
+                    new FanOut(words, mid, to, message, skip));
+        }
+
+        @Override
+        public boolean block() {
+            deliver(words, from, to, message, skip);
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return false;
+        }
+    }
+
+    private static LineCompressor borrowCompressor() {
+        LineCompressor codec = compressors.poll();
+        return codec != null ? codec : new LineCompressor();
+    }
+
+    /**
+     * A line headed for one or more connections. The compressed form is built
+     * at most once and shared by every member that negotiated compression.
+     */
+    static final class Outbound {
+        private final String line;
+        private final LineCompressor.Adaptive adaptive;
+        private volatile boolean compressTried = false;
+        private String compressed = null;
+        // Position in the group's history, or -1 if it was not recorded there.
+        volatile long seq = -1;
+
+        Outbound(String line) {
+            this(line, null);
+        }
+
+        Outbound(String line, LineCompressor.Adaptive adaptive) {
+            this.line = line;
+            this.adaptive = adaptive;
+        }
+
+        String forClient(ClientHandler ch) {
+            if (!ch.compression) return line;
+            if (!compressTried) prepare();
+            String z = compressed;
+            if (z == null) return line;
+            compressionSavedBytes.add(line.length() - z.length());
+            return z;
+        }
+
+        /** Builds the compressed form up front, before the message is shared between threads. */
+        synchronized void prepare() {
+            if (compressTried) return;
+            if (adaptive == null || adaptive.shouldTry(line)) {
+                LineCompressor codec = borrowCompressor();
+                try {
+                    compressed = codec.compress(line);
+                } finally {
+                    compressors.offer(codec);
+                }
+                if (adaptive != null) adaptive.record(compressed != null);
+            }
+            compressTried = true;
+        }
+    }
+
+    static final class Group {
+        final String name;
+        final MemberSet members = new MemberSet();
+        final TokenBucket limit = new TokenBucket(GROUP_RATE, GROUP_BURST);
+        final RecentMessages history = new RecentMessages(GROUP_HISTORY, GROUP_HISTORY_LINE);
+
+        Group(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The last {@code capacity} messages of a group no longer than {@code maxLine}
+     * characters, in a fixed ring. Writers claim a sequence number with one atomic
+     * increment; readers copy whatever entries still carry the sequence they
+     * expect and never block writers.
+     */
+    static final class RecentMessages {
+        private final int capacity;
+        private final int maxLine;
+        private final AtomicLong next = new AtomicLong();
+        private final AtomicReferenceArray<Entry> slots;
+
+        RecentMessages(int capacity, int maxLine) {
+            this.capacity = Math.max(0, capacity);
+            this.maxLine = maxLine;
+            this.slots = new AtomicReferenceArray<>(this.capacity);
+        }
+
+        void add(Outbound message) {
+            if (capacity == 0 || message.line.length() > maxLine) return;
+            long seq = next.getAndIncrement();
+            int slot = (int) (seq % capacity);
+            message.seq = seq;
+            Entry entry = new Entry(seq, message);
+            Entry current;
+            do {
+                current = slots.get(slot);
+                // A writer that lapped us already stored something newer.
+                if (current != null && current.seq > seq) return;
+            } while (!slots.compareAndSet(slot, current, entry));
+        }
+
+        void copyTo(List<Outbound> target) {
+            long end = next.get();
+            for (long seq = Math.max(0, end - capacity); seq < end; seq++) {
+                Entry entry = slots.get((int) (seq % capacity));
+                if (entry != null && entry.seq == seq) {
+                    target.add(entry.message);
+                }
+            }
+        }
+
+        private static final class Entry {
+            final long seq;
+            final Outbound message;
+
+            Entry(long seq, Outbound message) {
+                this.seq = seq;
+                this.message = message;
+            }
+        }
+    }
+
+    /**
+     * Dense int IDs for names. Released IDs are handed out again, lowest first,
+     * so the online table and member bitmaps stay sized by the peak number of
+     * users online rather than by every name ever seen.
+     */
+    static final class NameTable {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final BitSet free = new BitSet();
+        private int size = 0;
+
+        int intern(String name) {
+            Integer id = ids.get(name);
+            if (id != null) return id;
+            synchronized (this) {
+                id = ids.get(name);
+                if (id != null) return id;
+                int next = free.nextSetBit(0);
+                if (next >= 0) {
+                    free.clear(next);
+                } else {
+                    next = size++;
+                }
+                ids.put(name, next);
+                return next;
+            }
+        }
+
+        synchronized void release(String name, int id) {
+            if (ids.remove(name, id)) {
+                free.set(id);
+            }
+        }
+
+        int find(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : -1;
+        }
+    }
+
+    /**
+     * Group membership as a bitmap over user IDs: one bit per interned user
+     * instead of a hash-set node per member. Writers serialize on the set;
+     * readers scan the words without locking.
+     */
+    static final class MemberSet {
+        private volatile AtomicLongArray words = new AtomicLongArray(16);
+        private volatile int size = 0;
+
+        synchronized void add(int id) {
+            AtomicLongArray current = words;
+            int w = id >>> 6;
+            if (w >= current.length()) {
+                AtomicLongArray grown = new AtomicLongArray(Math.max(w + 1, current.length() * 2));
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                words = current = grown;
+            }
+            long bits = current.get(w);
+            if ((bits & (1L << id)) == 0) {
+                current.set(w, bits | (1L << id));
+                size++;
+            }
+        }
+
+        synchronized void remove(int id) {
+            AtomicLongArray current = words;
+            int w = id >>> 6;
+            if (w < current.length()) {
+                long bits = current.get(w);
+                if ((bits & (1L << id)) != 0) {
+                    current.set(w, bits & ~(1L << id));
+                    size--;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        AtomicLongArray words() {
+            return words;
+        }
+    }
+
+    /**
+     * Lock-free token bucket kept as a single theoretical arrival time (GCRA),
+     * so acquiring a token is one CAS and never allocates.
+     */
+    static final class TokenBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        TokenBucket(long ratePerSecond, long burst) {
+            this.intervalNanos = ratePerSecond > 0 ? 1_000_000_000L / ratePerSecond : 0;
+            this.burstNanos = intervalNanos * Math.max(1, burst);
+        }
+
+        boolean tryAcquire() {
+            if (intervalNanos == 0) return true;
+            long now = System.nanoTime();
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long next = (tat - now > 0 ? tat : now) + intervalNanos;
+                if (next - now > burstNanos) return false;
+                if (theoreticalArrival.compareAndSet(tat, next)) return true;
+            }
+        }
+
+        /** Always takes a token and returns how long the caller should wait before using it. */
+        long reserve() {
+            if (intervalNanos == 0) return 0;
+            long now = System.nanoTime();
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long next = (tat - now > 0 ? tat : now) + intervalNanos;
+                if (theoreticalArrival.compareAndSet(tat, next)) {
+                    return Math.max(0, next - now - burstNanos);
+                }
+            }
+        }
+    }
+}
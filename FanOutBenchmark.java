@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Group broadcast latency against a running ChatServer: puts
+ * {@code chat.bench.members} sessions (default 5,000) in GroupA, sends
+ * timestamped messages from one of them, and reports how long each message
+ * took to reach its last member (p50 / p99 / max) as well as the latency of
+ * single deliveries. Every session runs in this JVM, so one clock is used.
+ *
+ * The server must accept bare usernames, not rate limit and not replay
+ * history: {@code java -Dchat.auth=false -Dchat.rate.messages=0
+ * -Dchat.rate.commands=0 -Dchat.rate.group=0 -Dchat.group.history=0 ChatServer}.
+ */
+public class FanOutBenchmark {
+
+    private static final int MEMBERS = Integer.getInteger("chat.bench.members", 5_000);
+    private static final int MESSAGES = Integer.getInteger("chat.bench.messages", 200);
+    private static final long INTERVAL_MILLIS = Long.getLong("chat.bench.interval", 20);
+    private static final int CONNECT_BATCH = 100;
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length >= 1 ? args[0] : "localhost";
+        int port = args.length >= 2 ? Integer.parseInt(args[1]) : 12345;
+        long run = System.currentTimeMillis();
+
+        AtomicLongArray sentAt = new AtomicLongArray(MESSAGES);
+        AtomicLongArray lastArrival = new AtomicLongArray(MESSAGES);
+        AtomicIntegerArray arrivals = new AtomicIntegerArray(MESSAGES);
+        long[] deliveries = new long[(MEMBERS - 1) * MESSAGES];
+        int[] deliveryCount = {0};
+
+        List<ChatConnection> members = new ArrayList<>();
+        for (int i = 0; i < MEMBERS; i += CONNECT_BATCH) {
+            List<CompletableFuture<ChatConnection>> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(MEMBERS, i + CONNECT_BATCH); j++) {
+                String name = "fan-" + run + "-" + j;
+                batch.add(ChatConnection.connect(host, port).thenCompose(c ->
+                        c.login(name).thenCompose(v -> c.joinGroup("GroupA")).thenApply(reply -> c)));
+            }
+            for (CompletableFuture<ChatConnection> f : batch) {
+                members.add(f.get(60, TimeUnit.SECONDS));
+            }
+        }
+        System.out.println(MEMBERS + " members in GroupA");
+
+        ChatConnection sender = members.get(0);
+        for (int i = 1; i < members.size(); i++) {
+            members.get(i).addListener(event -> {
+                if (event.type != ChatEvent.Type.GROUP_MESSAGE || !event.text.startsWith("bench ")) return;
+                long now = System.nanoTime();
+                int seq = Integer.parseInt(event.text.substring("bench ".length()));
+                lastArrival.accumulateAndGet(seq, now, Math::max);
+                arrivals.incrementAndGet(seq);
+                synchronized (deliveries) {
+                    deliveries[deliveryCount[0]++] = now - sentAt.get(seq);
+                }
+            });
+        }
+        // Let the join notices drain before measuring.
+        Thread.sleep(2_000);
+
+        for (int seq = 0; seq < MESSAGES; seq++) {
+            sentAt.set(seq, System.nanoTime());
+            sender.sendGroup("bench " + seq);
+            Thread.sleep(INTERVAL_MILLIS);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (arrivals.get(MESSAGES - 1) < MEMBERS - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+
+        long[] lastMember = new long[MESSAGES];
+        int complete = 0;
+        for (int seq = 0; seq < MESSAGES; seq++) {
+            if (arrivals.get(seq) == MEMBERS - 1) {
+                lastMember[complete++] = lastArrival.get(seq) - sentAt.get(seq);
+            }
+        }
+        System.out.println(complete + " of " + MESSAGES + " messages reached every member");
+        report("last member", Arrays.copyOf(lastMember, complete));
+        synchronized (deliveries) {
+            report("single delivery", Arrays.copyOf(deliveries, deliveryCount[0]));
+        }
+        System.exit(0);
+    }
+
+    private static void report(String name, long[] nanos) {
+        if (nanos.length == 0) return;
+        Arrays.sort(nanos);
+        System.out.printf("%-16s p50 %7.2f ms  p99 %7.2f ms  max %7.2f ms%n", name,
+                nanos[nanos.length / 2] / 1e6,
+                nanos[(int) Math.min(nanos.length - 1, Math.ceil(nanos.length * 0.99) - 1)] / 1e6,
+                nanos[nanos.length - 1] / 1e6);
+    }
+}
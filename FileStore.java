@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server-side store of relayed files, keyed by the SHA-256 of their content.
+ *
+ * Files travel as lines, and the server trims every line and drops empty ones,
+ * so the hash is taken over exactly that: each trimmed, non-empty line followed
+ * by {@code '\n'}. Clients use {@link #contentHash(File)} to compute the same
+ * value before offering a file. Least recently used files are evicted once the
+ * store grows past its size limit.
+ */
+public class FileStore {
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public FileStore(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) {
+                    f.delete();
+                } else {
+                    sizes.put(f.getName(), f.length());
+                    totalBytes += f.length();
+                }
+            }
+        }
+    }
+
+    public static String contentHash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    digest.update((line + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /** Returns the stored file and marks it recently used, or null if it is not in the store. */
+    public synchronized File get(String hash) {
+        if (sizes.get(hash) == null) return null;
+        return new File(dir, hash);
+    }
+
+    public Upload begin() throws IOException {
+        return new Upload();
+    }
+
+    private synchronized void add(String hash, File tmp, long size) throws IOException {
+        File target = new File(dir, hash);
+        if (sizes.containsKey(hash)) {
+            tmp.delete();
+            sizes.get(hash); // refreshes its LRU position
+            return;
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Cannot store " + hash);
+        }
+        sizes.put(hash, size);
+        totalBytes += size;
+
+        Iterator<Map.Entry<String, Long>> eldest = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(dir, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /** A file being relayed line by line, stored under its hash once it is complete. */
+    public class Upload {
+        private final File tmp;
+        private final OutputStream out;
+        private final MessageDigest digest = newDigest();
+        private long size = 0;
+
+        private Upload() throws IOException {
+            tmp = File.createTempFile("upload", ".tmp", dir);
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+        }
+
+        public void write(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            digest.update(bytes);
+            out.write(bytes);
+            size += bytes.length;
+        }
+
+        public String finish() throws IOException {
+            out.close();
+            String hash = toHex(digest.digest());
+            add(hash, tmp, size);
+            return hash;
+        }
+
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            tmp.delete();
+        }
+    }
+}
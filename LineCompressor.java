@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-line compression for the chat protocol once both sides have agreed on
+ * {@code COMPRESS deflate}. A compressed line is {@code "Z " + base64(raw deflate)}.
+ * Every line is compressed on its own against a preset dictionary, so a group
+ * broadcast can be compressed once and the same text sent to every member.
+ *
+ * Instances are not thread-safe.
+ */
+public class LineCompressor {
+
+    public static final String PREFIX = "Z ";
+    public static final String ALGORITHM = "deflate";
+
+    /** Shorter lines rarely win once base64 is paid for. */
+    public static final int MIN_LENGTH = 64;
+
+    /** Same bound as an uncompressed line; a compressed line may not expand past it. */
+    public static final int MAX_DECODED_LENGTH = 1024 * 1024;
+
+    // Most frequent strings go last: deflate finds them at the shortest distance.
+    private static final byte[] DICTIONARY = (
+            "FILESTART_USER FILESTART_GROUP USERS GROUP_MEMBERS GROUPS "
+            + "ERROR OK File sent to group has left the group has joined the group GROUP_INFO "
+            + "what when will would there their about just like know think "
+            + "have this that with from your they been were "
+            + "the and you for are not but can all "
+            + "PRIVATE_FROM GROUP_FROM FILEDATA ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] buffer = new byte[1024];
+
+    /** Returns the compressed line, or null when it would not be shorter than the original. */
+    public String compress(String line) {
+        if (line.length() < MIN_LENGTH) return null;
+        String compressed = deflate(line);
+        return compressed.length() < line.length() ? compressed : null;
+    }
+
+    /**
+     * Compresses an outgoing line when the adaptive state says it is worth
+     * trying. Raw lines that happen to start with {@link #PREFIX} are always
+     * compressed so the receiver cannot mistake them for compressed ones.
+     */
+    public String encode(String line, Adaptive adaptive) {
+        if (line.startsWith(PREFIX)) return deflate(line);
+        if (!adaptive.shouldTry(line)) return line;
+        String compressed = compress(line);
+        adaptive.record(compressed != null);
+        return compressed != null ? compressed : line;
+    }
+
+    public String decode(String line) throws IOException {
+        byte[] input;
+        try {
+            input = Base64.getDecoder().decode(line.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed compressed line", e);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    if (length > MAX_DECODED_LENGTH) {
+                        throw new LineTooLongException();
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_DECODED_LENGTH + 1));
+                }
+                int n = inflater.inflate(buffer, length, buffer.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed line");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed line", e);
+        }
+        if (length > MAX_DECODED_LENGTH) {
+            throw new LineTooLongException();
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String deflate(String line) {
+        byte[] input = line.getBytes(StandardCharsets.UTF_8);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return PREFIX + Base64.getEncoder().withoutPadding()
+                .encodeToString(Arrays.copyOf(buffer, length));
+    }
+
+    /** A compressed line that inflates past {@link #MAX_DECODED_LENGTH}. */
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException() {
+            super("Compressed line too long");
+        }
+    }
+
+    /**
+     * Tracks whether a stream of lines (one file transfer) is compressing at
+     * all; after a run of misses it stops trying for a while, then probes again.
+     */
+    public static class Adaptive {
+        private static final int MISSES_BEFORE_SKIP = 8;
+        private static final int SKIP_LINES = 256;
+
+        private int misses;
+        private int skip;
+
+        public boolean shouldTry(String line) {
+            if (line.length() < MIN_LENGTH) return false;
+            if (skip > 0) {
+                skip--;
+                return false;
+            }
+            return true;
+        }
+
+        public void record(boolean compressed) {
+            if (compressed) {
+                misses = 0;
+            } else if (++misses >= MISSES_BEFORE_SKIP) {
+                misses = 0;
+                skip = SKIP_LINES;
+            }
+        }
+    }
+}
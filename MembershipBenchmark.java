@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap used by group membership: the server's bitmap MemberSets against the
+ * concurrent hash sets of handlers they replaced. Builds 100k memberships
+ * (10,000 users, each in 10 of 100 groups) both ways and reports the retained
+ * heap after a full GC. Only the membership structures are counted; the user
+ * objects exist before the first measurement.
+ *
+ * Run with a fixed heap for stable numbers, e.g.
+ * {@code java -Xms512m -Xmx512m MembershipBenchmark}.
+ */
+public class MembershipBenchmark {
+
+    private static final int USERS = Integer.getInteger("chat.bench.users", 10_000);
+    private static final int GROUPS = Integer.getInteger("chat.bench.groups", 100);
+    private static final int GROUPS_PER_USER = Integer.getInteger("chat.bench.groupsPerUser", 10);
+
+    public static void main(String[] args) {
+        Object[] users = new Object[USERS];
+        for (int i = 0; i < USERS; i++) {
+            users[i] = new Object();
+        }
+        long memberships = (long) USERS * GROUPS_PER_USER;
+        System.out.println(memberships + " memberships (" + USERS + " users, " + GROUPS + " groups)");
+
+        long before = usedHeap();
+        List<ChatServer.MemberSet> bitmaps = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            bitmaps.add(new ChatServer.MemberSet());
+        }
+        for (int u = 0; u < USERS; u++) {
+            for (int k = 0; k < GROUPS_PER_USER; k++) {
+                bitmaps.get(group(u, k)).add(u);
+            }
+        }
+        report("bitmap MemberSet", usedHeap() - before, memberships);
+
+        before = usedHeap();
+        List<Set<Object>> sets = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            sets.add(ConcurrentHashMap.newKeySet());
+        }
+        for (int u = 0; u < USERS; u++) {
+            for (int k = 0; k < GROUPS_PER_USER; k++) {
+                sets.get(group(u, k)).add(users[u]);
+            }
+        }
+        report("ConcurrentHashMap key set", usedHeap() - before, memberships);
+
+        // Keep everything reachable until both have been measured.
+        if (bitmaps.size() + sets.size() + users.length == 0) System.out.println();
+    }
+
+    private static int group(int user, int k) {
+        return (user + k * (GROUPS / GROUPS_PER_USER)) % GROUPS;
+    }
+
+    private static void report(String name, long bytes, long memberships) {
+        System.out.printf("%-26s %,12d bytes  %6.1f bytes/membership%n", name, bytes, bytes / (double) memberships);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
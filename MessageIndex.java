@@ -0,0 +1,663 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only chat history with an incremental inverted index for SEARCH.
+ *
+ * Every message gets a sequential int ID and goes to {@code messages.log}, with
+ * its byte offset in {@code messages.off}. Terms of new messages are indexed in
+ * memory and written out as small immutable segment files; a background thread
+ * merges segments once there are too many. Only the segments' term dictionaries
+ * are kept in memory, posting lists are read from disk when a query needs them.
+ *
+ * Index keys are {@code conversation + '\t' + term}, so a query only ever reads
+ * postings of the conversation it asks about.
+ */
+public class MessageIndex implements Closeable {
+
+    private static final int SEGMENT_MESSAGES = Integer.getInteger("chat.search.segment", 4096);
+    private static final int MERGE_FACTOR = 4;
+    private static final long FLUSH_SECONDS = 5;
+    private static final long DELETE_DELAY_SECONDS = 60;
+
+    private final File dir;
+    private final File logFile;
+    private final File offsetFile;
+    private final DataOutputStream log;
+    private final DataOutputStream offsets;
+    private long logPosition;
+    private int messageCount;
+
+    private Map<String, Postings> buffer = new HashMap<>();
+    private int bufferStart;
+    private Map<String, Postings> flushing = null;
+    private volatile List<Segment> segments;
+    private int nextSegmentNumber = 0;
+
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static class Hit {
+        public final long time;
+        public final String from;
+        public final String text;
+
+        Hit(long time, String from, String text) {
+            this.time = time;
+            this.from = from;
+            this.text = text;
+        }
+    }
+
+    public MessageIndex(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        logFile = new File(dir, "messages.log");
+        offsetFile = new File(dir, "messages.off");
+
+        // The two files are flushed separately, so after a crash either can be
+        // ahead of the other. The log wins: cut it back to its last complete
+        // record, then make the offsets match it.
+        logPosition = truncateLog();
+        messageCount = reconcileOffsets(logPosition);
+
+        segments = Collections.unmodifiableList(loadSegments());
+        int indexed = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).maxId + 1;
+        bufferStart = indexed;
+        reindex(indexed);
+
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetFile, true)));
+
+        background.scheduleWithFixedDelay(this::periodicFlush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void add(String conversation, String from, String text) throws IOException {
+        byte[] record = (System.currentTimeMillis() + "\t" + conversation + "\t" + from + "\t" + text + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+        log.write(record);
+        offsets.writeLong(logPosition);
+        logPosition += record.length;
+        index(messageCount++, conversation, text);
+        if (messageCount - bufferStart >= SEGMENT_MESSAGES && flushing == null) {
+            startFlush();
+        }
+    }
+
+    /** Returns up to {@code limit} of the most recent messages matching every term, oldest first. */
+    public List<Hit> search(String conversation, String query, int limit) throws IOException {
+        Set<String> keys = new LinkedHashSet<>();
+        for (String term : tokenize(query)) {
+            keys.add(conversation + "\t" + term);
+        }
+        if (keys.isEmpty()) return Collections.emptyList();
+
+        List<Segment> snapshot;
+        Map<String, int[]> inMemory = new HashMap<>();
+        long logEnd;
+        int count;
+        synchronized (this) {
+            snapshot = segments;
+            for (String key : keys) {
+                inMemory.put(key, concat(postingsOf(flushing, key), postingsOf(buffer, key)));
+            }
+            log.flush();
+            offsets.flush();
+            logEnd = logPosition;
+            count = messageCount;
+        }
+
+        // Segments hold disjoint, ascending ID ranges and the in-memory terms are
+        // newer than all of them, so each is intersected on its own, newest
+        // first, and older segments are never read once enough hits are found.
+        List<Hit> hits = new ArrayList<>();
+        try (RandomAccessFile offsetIn = new RandomAccessFile(offsetFile, "r");
+             RandomAccessFile logIn = new RandomAccessFile(logFile, "r")) {
+            for (int source = snapshot.size(); source >= 0 && hits.size() < limit; source--) {
+                int[] matches = null;
+                for (String key : keys) {
+                    int[] ids = source == snapshot.size() ? inMemory.get(key) : snapshot.get(source).postings(key);
+                    if (ids == null || ids.length == 0) {
+                        matches = null;
+                        break;
+                    }
+                    matches = matches == null ? ids : intersect(matches, ids);
+                    if (matches.length == 0) break;
+                }
+                if (matches == null) continue;
+                for (int i = matches.length - 1; i >= 0 && hits.size() < limit; i--) {
+                    if (matches[i] >= count) continue;
+                    Hit hit = readHit(offsetIn, logIn, matches[i], count, logEnd, conversation);
+                    if (hit != null) hits.add(hit);
+                }
+            }
+        }
+        Collections.reverse(hits);
+        return hits;
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        synchronized (this) {
+            log.close();
+            offsets.close();
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start >= 2 && i - start <= 64) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private void index(int id, String conversation, String text) {
+        for (String term : tokenize(text)) {
+            buffer.computeIfAbsent(conversation + "\t" + term, k -> new Postings()).add(id);
+        }
+    }
+
+    private void startFlush() {
+        Map<String, Postings> terms = buffer;
+        int first = bufferStart;
+        int last = messageCount - 1;
+        int number = nextSegmentNumber++;
+        flushing = terms;
+        buffer = new HashMap<>();
+        bufferStart = messageCount;
+        background.execute(() -> writeSegment(terms, first, last, number));
+    }
+
+    private void periodicFlush() {
+        synchronized (this) {
+            try {
+                log.flush();
+                offsets.flush();
+            } catch (IOException e) {
+                System.out.println("History write failed: " + e.getMessage());
+            }
+            if (flushing == null && !buffer.isEmpty()) {
+                startFlush();
+            }
+        }
+    }
+
+    private void writeSegment(Map<String, Postings> terms, int first, int last, int number) {
+        try {
+            synchronized (this) {
+                log.flush();
+                offsets.flush();
+            }
+            SegmentWriter writer = new SegmentWriter(segmentFile(number));
+            for (String key : new TreeSet<>(terms.keySet())) {
+                Postings postings = terms.get(key);
+                writer.add(key, postings.ids, postings.size);
+            }
+            Segment segment = writer.finish(first, last);
+            synchronized (this) {
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.add(segment);
+                segments = Collections.unmodifiableList(updated);
+                flushing = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Search index flush failed: " + e.getMessage());
+            synchronized (this) {
+                // Keep the terms searchable and retry with the next flush.
+                for (Map.Entry<String, Postings> entry : buffer.entrySet()) {
+                    Postings older = terms.computeIfAbsent(entry.getKey(), k -> new Postings());
+                    Postings newer = entry.getValue();
+                    for (int i = 0; i < newer.size; i++) older.add(newer.ids[i]);
+                }
+                buffer = terms;
+                bufferStart = first;
+                flushing = null;
+            }
+            return;
+        }
+        try {
+            maybeMerge();
+        } catch (IOException e) {
+            System.out.println("Search index merge failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges {@code MERGE_FACTOR} adjacent segments, anywhere in the list,
+     * whenever none of them holds more messages than the others together;
+     * the cheapest such window goes first. A merge at least doubles the segment
+     * each message is in, so a message is rewritten only a logarithmic number
+     * of times, and the odd-sized segments left by periodic flushes are folded
+     * into their neighbours instead of blocking older merges. Runs on the
+     * background thread, which is also the only one that changes the list.
+     */
+    private void maybeMerge() throws IOException {
+        while (true) {
+            List<Segment> current = segments;
+            int runStart = -1;
+            long cheapest = Long.MAX_VALUE;
+            for (int start = 0; start + MERGE_FACTOR <= current.size(); start++) {
+                long total = 0;
+                long largest = 0;
+                for (int i = start; i < start + MERGE_FACTOR; i++) {
+                    long n = current.get(i).messages();
+                    total += n;
+                    largest = Math.max(largest, n);
+                }
+                if (largest <= total - largest && total < cheapest) {
+                    runStart = start;
+                    cheapest = total;
+                }
+            }
+            if (runStart < 0) return;
+            int runEnd = runStart + MERGE_FACTOR;
+
+            List<Segment> toMerge = new ArrayList<>(current.subList(runStart, runEnd));
+            int number;
+            synchronized (this) {
+                number = nextSegmentNumber++;
+            }
+            Segment merged = merge(toMerge, segmentFile(number));
+            synchronized (this) {
+                List<Segment> updated = new ArrayList<>(segments.subList(0, runStart));
+                updated.add(merged);
+                updated.addAll(segments.subList(runEnd, segments.size()));
+                segments = Collections.unmodifiableList(updated);
+            }
+            // Queries that took their snapshot before the swap may still read these.
+            background.schedule(() -> {
+                for (Segment old : toMerge) old.file.delete();
+            }, DELETE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Segment merge(List<Segment> parts, File file) throws IOException {
+        TreeSet<String> keys = new TreeSet<>();
+        for (Segment part : parts) {
+            keys.addAll(Arrays.asList(part.terms));
+        }
+        List<Segment.Cursor> cursors = new ArrayList<>();
+        try {
+            for (Segment part : parts) {
+                cursors.add(part.cursor());
+            }
+            SegmentWriter writer = new SegmentWriter(file);
+            for (String key : keys) {
+                int[] ids = new int[0];
+                for (Segment.Cursor cursor : cursors) {
+                    ids = concat(ids, cursor.postings(key));
+                }
+                writer.add(key, ids, ids.length);
+            }
+            return writer.finish(parts.get(0).minId, parts.get(parts.size() - 1).maxId);
+        } finally {
+            for (Segment.Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, "segment-" + number + ".idx");
+    }
+
+    private List<Segment> loadSegments() throws IOException {
+        List<Segment> loaded = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-"));
+        if (files == null) return loaded;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            int number = Integer.parseInt(name.substring("segment-".length(), name.length() - ".idx".length()));
+            nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+            Segment segment = Segment.open(file);
+            if (segment.maxId >= messageCount) {
+                // Indexes messages that were lost from the log; they are reindexed.
+                file.delete();
+                continue;
+            }
+            loaded.add(segment);
+        }
+        loaded.sort(Comparator.comparingInt((Segment s) -> s.minId).thenComparingInt(s -> -s.maxId));
+        // A crash between writing a merged segment and deleting its inputs leaves overlaps.
+        List<Segment> result = new ArrayList<>();
+        for (Segment segment : loaded) {
+            if (!result.isEmpty() && segment.maxId <= result.get(result.size() - 1).maxId) {
+                segment.file.delete();
+            } else {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    /** Drops a torn record from the end of the log and returns the log's length. */
+    private long truncateLog() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            long end = raf.length();
+            byte[] block = new byte[8192];
+            while (end > 0) {
+                int n = (int) Math.min(block.length, end);
+                raf.seek(end - n);
+                raf.readFully(block, 0, n);
+                int i = n - 1;
+                while (i >= 0 && block[i] != '\n') i--;
+                if (i >= 0) {
+                    end = end - n + i + 1;
+                    break;
+                }
+                end -= n;
+            }
+            raf.setLength(end);
+            return end;
+        }
+    }
+
+    /**
+     * Drops offsets at or past the end of the log, adds the ones the log has
+     * records for but the offset file never got, and returns the message count.
+     */
+    private int reconcileOffsets(long logLength) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(offsetFile, "rw")) {
+            // Offsets only grow, so the valid ones are a prefix.
+            long low = 0, high = raf.length() / 8;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                raf.seek(mid * 8);
+                if (raf.readLong() < logLength) low = mid + 1;
+                else high = mid;
+            }
+            long count = low;
+            raf.setLength(count * 8);
+            if (logLength == 0) return 0;
+
+            ByteArrayOutputStream missing = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(missing);
+            long position = 0;
+            if (count == 0) {
+                out.writeLong(0);
+                count++;
+            } else {
+                raf.seek((count - 1) * 8);
+                position = raf.readLong();
+            }
+            try (FileInputStream in = new FileInputStream(logFile)) {
+                in.getChannel().position(position);
+                InputStream log = new BufferedInputStream(in);
+                for (int b; (b = log.read()) >= 0; ) {
+                    position++;
+                    if (b == '\n' && position < logLength) {
+                        out.writeLong(position);
+                        count++;
+                    }
+                }
+            }
+            raf.seek(raf.length());
+            raf.write(missing.toByteArray());
+            return (int) count;
+        }
+    }
+
+    private void reindex(int fromId) throws IOException {
+        if (fromId >= messageCount) return;
+        long start;
+        try (RandomAccessFile offsetIn = new RandomAccessFile(offsetFile, "r")) {
+            offsetIn.seek((long) fromId * 8);
+            start = offsetIn.readLong();
+        }
+        try (FileInputStream in = new FileInputStream(logFile)) {
+            in.getChannel().position(start);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            for (int id = fromId; id < messageCount; id++) {
+                String record = reader.readLine();
+                if (record == null) break;
+                String[] fields = record.split("\t", 4);
+                if (fields.length == 4) index(id, fields[1], fields[3]);
+            }
+        }
+    }
+
+    /** Reads one record, or returns null if it does not belong to {@code conversation}. */
+    private static Hit readHit(RandomAccessFile offsetIn, RandomAccessFile logIn,
+                               int id, int count, long logEnd, String conversation) throws IOException {
+        offsetIn.seek((long) id * 8);
+        long start = offsetIn.readLong();
+        long end = id + 1 < count ? offsetIn.readLong() : logEnd;
+        if (start < 0 || end < start || end > logEnd) {
+            throw new IOException("History offsets are damaged at message " + id);
+        }
+        byte[] bytes = new byte[(int) (end - start)];
+        logIn.seek(start);
+        logIn.readFully(bytes);
+        // Never return more than one record, whatever the offsets say.
+        int length = 0;
+        while (length < bytes.length && bytes[length] != '\n') length++;
+        String[] fields = new String(bytes, 0, length, StandardCharsets.UTF_8).trim().split("\t", 4);
+        if (fields.length < 3 || !fields[1].equals(conversation)) return null;
+        try {
+            return new Hit(Long.parseLong(fields[0]), fields[2], fields.length > 3 ? fields[3] : "");
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int[] postingsOf(Map<String, Postings> terms, String key) {
+        if (terms == null) return null;
+        Postings postings = terms.get(key);
+        return postings == null ? null : Arrays.copyOf(postings.ids, postings.size);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a == null || a.length == 0) return b == null ? new int[0] : b;
+        if (b == null || b.length == 0) return a;
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) return;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * An immutable index file: delta/varint posting lists, then the term
+     * dictionary, then a fixed footer {@code dictionaryOffset, minId, maxId}.
+     */
+    private static final class Segment {
+        final File file;
+        final String[] terms;
+        final long[] offsets;
+        final int[] counts;
+        final int minId;
+        final int maxId;
+
+        private Segment(File file, String[] terms, long[] offsets, int[] counts, int minId, int maxId) {
+            this.file = file;
+            this.terms = terms;
+            this.offsets = offsets;
+            this.counts = counts;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+
+        static Segment open(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(raf.length() - 16);
+                long dictionaryOffset = raf.readLong();
+                int minId = raf.readInt();
+                int maxId = raf.readInt();
+                raf.seek(dictionaryOffset);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+                int termCount = in.readInt();
+                String[] terms = new String[termCount];
+                long[] offsets = new long[termCount];
+                int[] counts = new int[termCount];
+                for (int i = 0; i < termCount; i++) {
+                    terms[i] = in.readUTF();
+                    offsets[i] = in.readLong();
+                    counts[i] = in.readInt();
+                }
+                return new Segment(file, terms, offsets, counts, minId, maxId);
+            }
+        }
+
+        long messages() {
+            return (long) maxId - minId + 1;
+        }
+
+        int[] postings(String key) throws IOException {
+            int i = Arrays.binarySearch(terms, key);
+            if (i < 0) return null;
+            try (FileInputStream fis = new FileInputStream(file)) {
+                fis.getChannel().position(offsets[i]);
+                return readPostings(new DataInputStream(new BufferedInputStream(fis, 4096)), counts[i]);
+            }
+        }
+
+        Cursor cursor() throws IOException {
+            return new Cursor();
+        }
+
+        /**
+         * Reads every posting list in one pass. Lists are written in term order,
+         * so they follow each other in the file in the same order as the dictionary.
+         */
+        final class Cursor implements Closeable {
+            private final DataInputStream in;
+            private int next = 0;
+
+            private Cursor() throws IOException {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            }
+
+            /** Returns the postings of {@code key}, or null; keys must be asked for in sorted order. */
+            int[] postings(String key) throws IOException {
+                if (next == terms.length || !terms[next].equals(key)) return null;
+                return readPostings(in, counts[next++]);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+
+        private static int[] readPostings(DataInput in, int count) throws IOException {
+            int[] ids = new int[count];
+            int previous = 0;
+            for (int n = 0; n < count; n++) {
+                previous += readVarInt(in);
+                ids[n] = previous;
+            }
+            return ids;
+        }
+
+        private static int readVarInt(DataInput in) throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.readByte();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+    }
+
+    private static final class SegmentWriter {
+        private final File file;
+        private final File tmp;
+        private final DataOutputStream out;
+        private long position = 0;
+        private final List<String> terms = new ArrayList<>();
+        private final List<long[]> entries = new ArrayList<>();
+
+        SegmentWriter(File file) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        }
+
+        void add(String key, int[] ids, int count) throws IOException {
+            if (count == 0) return;
+            terms.add(key);
+            entries.add(new long[] {position, count});
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarInt(ids[i] - previous);
+                previous = ids[i];
+            }
+        }
+
+        Segment finish(int minId, int maxId) throws IOException {
+            long dictionaryOffset = position;
+            out.writeInt(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                out.writeUTF(terms.get(i));
+                out.writeLong(entries.get(i)[0]);
+                out.writeInt((int) entries.get(i)[1]);
+            }
+            out.writeLong(dictionaryOffset);
+            out.writeInt(minId);
+            out.writeInt(maxId);
+            out.close();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            return Segment.open(file);
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+                position++;
+            }
+            out.writeByte(value);
+            position++;
+        }
+    }
+}
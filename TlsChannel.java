@@ -0,0 +1,380 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.*;
+
+/**
+ * TLS over a blocking SocketChannel, driven through an SSLEngine so it can
+ * stand in for the plain channel under the server's LineReader and write path.
+ *
+ * Network and decrypted bytes live in buffers borrowed from the BufferPool only
+ * while a record is partly read or being written; an idle connection waits on a
+ * one-byte probe and holds nothing. Reads run on the connection's own thread
+ * and writes are serialized by the caller, as for a plain channel; SSLEngine
+ * allows one unwrap and one wrap to run at the same time.
+ */
+public class TlsChannel implements ByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** Results of {@link #handshakeStep()} other than an interest set to wait for. */
+    static final int HANDSHAKE_DONE = 0;
+    static final int HANDSHAKE_TASKS = -1;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final BufferPool.Reader reads;
+    private final Object wrapLock = new Object();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+
+    private ByteBuffer netIn = null;   // ciphertext not yet unwrapped, in fill mode
+    private ByteBuffer appIn = null;   // plaintext not yet returned, in drain mode
+    private ByteBuffer netOut = null;  // handshake records not yet written, in drain mode
+    private ByteBuffer handshakeApp = null;
+
+    /** {@code reads} must be shared with whatever reads lines from this channel. */
+    public TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool, BufferPool.Reader reads) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.reads = reads;
+    }
+
+    /** Server context from a PKCS12 or JKS keystore holding one key and its certificate chain. */
+    public static SSLContext serverContext(File keystore, char[] password,
+                                           int sessionCacheSize, int sessionTimeoutSeconds)
+            throws IOException, GeneralSecurityException {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(keystore)) {
+            ks.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+        return context;
+    }
+
+    /** Client context trusting the given store, or the JDK's default CAs if it is null. */
+    public static SSLContext clientContext(File truststore, char[] password)
+            throws IOException, GeneralSecurityException {
+        TrustManager[] trust = null;
+        if (truststore != null) {
+            KeyStore ts = KeyStore.getInstance(KeyStore.getDefaultType());
+            try (InputStream in = new FileInputStream(truststore)) {
+                ts.load(in, password);
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ts);
+            trust = tmf.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        return context;
+    }
+
+    /**
+     * Advances the handshake over a non-blocking channel as far as it goes
+     * without waiting, and returns the {@link SelectionKey} operation to wait
+     * for, {@link #HANDSHAKE_TASKS} when the engine's delegated tasks must run
+     * first, or {@link #HANDSHAKE_DONE}. Buffers are borrowed on the first call,
+     * so make it only once the client has sent something. Call it from one
+     * thread at a time; the channel must be switched back to blocking mode
+     * before it is used for reads and writes.
+     */
+    int handshakeStep() throws IOException {
+        if (netOut == null) {
+            SSLSession session = engine.getSession();
+            netIn = reads.acquireNow(session.getPacketBufferSize());
+            netOut = pool.acquire(session.getPacketBufferSize());
+            netOut.flip();
+            handshakeApp = pool.acquire(session.getApplicationBufferSize());
+        }
+        while (true) {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) return SelectionKey.OP_WRITE;
+            }
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    netOut.clear();
+                    result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        // Best effort to deliver the alert that explains why.
+                        channel.write(netOut);
+                        throw new SSLException("Connection closed during handshake");
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netIn.flip();
+                    result = engine.unwrap(netIn, handshakeApp);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int n = channel.read(netIn);
+                        if (n < 0) throw new EOFException("Connection closed during handshake");
+                        if (n == 0) return SelectionKey.OP_READ;
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Connection closed during handshake");
+                    }
+                    break;
+                case NEED_TASK:
+                    return HANDSHAKE_TASKS;
+                default:
+                    releaseHandshakeBuffers();
+                    if (netIn.position() == 0) {
+                        reads.release(netIn);
+                        netIn = null;
+                    }
+                    return HANDSHAKE_DONE;
+            }
+        }
+    }
+
+    /** Gives up on a handshake: releases its buffers and closes the socket. */
+    void abortHandshake() {
+        releaseHandshakeBuffers();
+        releaseReadBuffers();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void releaseHandshakeBuffers() {
+        if (netOut != null) {
+            pool.release(netOut);
+            pool.release(handshakeApp);
+            netOut = null;
+            handshakeApp = null;
+        }
+    }
+
+    /**
+     * Drives a handshake to completion over a blocking channel. {@code netIn}
+     * is in fill mode and keeps any bytes read past the final handshake record.
+     * No application data may arrive before the handshake completes.
+     */
+    static void handshake(SSLEngine engine, ByteChannel io, ByteBuffer netIn,
+                          ByteBuffer netOut, ByteBuffer app) throws IOException {
+        engine.beginHandshake();
+        while (true) {
+            SSLEngineResult result;
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    netOut.clear();
+                    result = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    while (netOut.hasRemaining()) {
+                        io.write(netOut);
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Connection closed during handshake");
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netIn.flip();
+                    result = engine.unwrap(netIn, app);
+                    netIn.compact();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (io.read(netIn) < 0) throw new EOFException("Connection closed during handshake");
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Connection closed during handshake");
+                    }
+                    break;
+                case NEED_TASK:
+                    runTasks(engine);
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    public SSLSession session() {
+        return engine.getSession();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            return readPlaintext(dst);
+        } catch (IOException e) {
+            releaseReadBuffers();
+            throw e;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private int readPlaintext(ByteBuffer dst) throws IOException {
+        while (appIn == null) {
+            if (netIn == null) {
+                probe.clear();
+                if (channel.read(probe) < 0) {
+                    return endOfStream();
+                }
+                probe.flip();
+                netIn = borrow(engine.getSession().getPacketBufferSize());
+                netIn.put(probe);
+            }
+            ByteBuffer app = borrow(engine.getSession().getApplicationBufferSize());
+            SSLEngineResult result;
+            try {
+                netIn.flip();
+                result = engine.unwrap(netIn, app);
+                netIn.compact();
+                afterUnwrap(result);
+            } catch (IOException e) {
+                reads.release(app);
+                throw e;
+            }
+            app.flip();
+            if (app.hasRemaining()) {
+                appIn = app;
+            } else {
+                reads.release(app);
+            }
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                throw new SSLException("Record larger than the application buffer");
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                if (appIn == null) return endOfStream();
+            } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                if (channel.read(netIn) < 0) return endOfStream();
+            } else if (netIn.position() == 0) {
+                reads.release(netIn);
+                netIn = null;
+            }
+        }
+
+        int n = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+        if (!appIn.hasRemaining()) {
+            reads.release(appIn);
+            appIn = null;
+        }
+        return n;
+    }
+
+    // TLS 1.3 sends key updates and session tickets after the handshake.
+    private void afterUnwrap(SSLEngineResult result) throws IOException {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks(engine);
+            status = engine.getHandshakeStatus();
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            write(EMPTY);
+        }
+    }
+
+    private int endOfStream() {
+        releaseReadBuffers();
+        return -1;
+    }
+
+    private void releaseReadBuffers() {
+        if (netIn != null) {
+            reads.release(netIn);
+            netIn = null;
+        }
+        if (appIn != null) {
+            reads.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /** Encrypts and writes all of {@code src}; an empty buffer flushes pending handshake records. */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (wrapLock) {
+            int written = 0;
+            ByteBuffer net = pool.acquire(engine.getSession().getPacketBufferSize());
+            try {
+                do {
+                    net.clear();
+                    int before = src.remaining();
+                    SSLEngineResult result = engine.wrap(src, net);
+                    written += before - src.remaining();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining()) {
+                        throw new SSLException("TLS session closed");
+                    }
+                    if (result.bytesProduced() == 0 && !src.hasRemaining()) break;
+                    net.flip();
+                    while (net.hasRemaining()) {
+                        channel.write(net);
+                    }
+                } while (src.hasRemaining()
+                        || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP);
+            } finally {
+                pool.release(net);
+            }
+            return written;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify when the socket is still usable, then closes it. Any
+     * thread may call this; if a read is in progress, the close wakes it and
+     * the reader releases its own buffers.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) return;
+        try {
+            synchronized (wrapLock) {
+                engine.closeOutbound();
+                write(EMPTY);
+            }
+        } catch (IOException ignored) {
+            // The peer is gone or the engine failed; there is nobody to notify.
+        } finally {
+            channel.close();
+            if (readLock.tryLock()) {
+                try {
+                    releaseReadBuffers();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer borrow(int size) throws IOException {
+        try {
+            return reads.acquire(size);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}